@@ -7,7 +7,25 @@ import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Base64;
 import javax.imageio.ImageIO;
@@ -34,12 +52,58 @@ public class AppClient extends JFrame {
     private JButton sendButton;
     private JButton sendImageButton;
     private JButton disconnectButton;
+    private JButton joinRoomButton;
     private JButton videoCallButton;
     private JLabel headerStatusLabel;
     private JLabel headerNameLabel;
 
     // ── Data ──────────────────────────────────────────────────────────────────
-    private PrintWriter out;
+    private volatile Socket socket; // replaced on every reconnect
+    private OutputStream out;
+    private volatile boolean binary; // FrameCodec frames negotiated via HELLO
+    private volatile boolean chunked; // server relays images as IMG_BEGIN/IMG_CHUNK/IMG_END
+    private final AtomicLong nextTransferId = new AtomicLong();
+    private final Set<Long> activeUploads = ConcurrentHashMap.newKeySet();
+    private final Map<Long, ImageProgressBubble> uploadBubbles = new ConcurrentHashMap<>();
+    private final Map<Long, IncomingImage> incoming = new HashMap<>(); // EDT only, keyed by server relay id
+    private volatile boolean media; // server sends IMAGE_REF hashes instead of image bytes
+    private volatile boolean thumbs; // server sends THUMB previews; full images are fetched when opened
+    private volatile boolean acks; // server acknowledges MSG_ID-wrapped chat messages
+    private volatile String resumeToken; // from RESUME:, lets a reconnect take over our old login
+    private volatile long reconnectDelay = 500; // ms; reset once a login succeeds
+    private boolean reconnecting; // EDT only: chat lines wait in unacked until we are back
+    private volatile Socket loginPending; // login line sent on this socket, no Welcome yet
+    private boolean resumePending; // EDT only: logged in with acks, RESUME token still to come
+    private String loginRejected; // EDT only: why the server refused the pending login
+    private final AtomicLong nextMessageId = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final Map<Long, Unacked> unacked = new LinkedHashMap<>(); // EDT only: sent, not yet acked, oldest first
+    private volatile boolean history; // server answers HISTORY page requests
+    private final List<String> historyItems = new ArrayList<>(); // EDT only: current page, until HISTORY_END
+    private List<Component> historyRows; // EDT only: non-null while a history page is being rendered
+    private long historyTime; // EDT only: timestamp for bubbles of the page being rendered
+    private JPanel loadOlderRow;
+    private long historyBefore; // cursor of the page last asked for; 0 = newest
+    private final Set<String> serverMedia = ConcurrentHashMap.newKeySet(); // hashes the server is known to store
+    private final Map<String, Runnable> reuploads = new LinkedHashMap<String, Runnable>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Runnable> eldest) {
+            return size() > 8; // MEDIA_MISSING comes right after the IMG_REF, if at all
+        }
+    }; // EDT only: IMG_REF sent, upload the bytes if the server says MEDIA_MISSING
+    private final Map<String, List<ImageProgressBubble>> pendingMedia = new HashMap<>(); // EDT only
+    private final Map<String, List<JLabel>> pendingThumbs = new LinkedHashMap<String, List<JLabel>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<JLabel>> eldest) {
+            return size() > 64; // the server sends none if it is too busy to make one
+        }
+    }; // EDT only: preview bubbles waiting for their THUMB
+    private final Set<String> opening = new HashSet<>(); // EDT only: MEDIA_GET sent to open the image
+    private final Map<String, BufferedImage> mediaCache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+            return size() > 32;
+        }
+    }; // EDT only
     private volatile boolean connected = true;
     private String userName;
     private DefaultListModel<String> usersListModel = new DefaultListModel<>();
@@ -47,6 +111,8 @@ public class AppClient extends JFrame {
     private JList<String> usersList;
     private JList<String> conversationsList;
     private String currentConversation = "All";
+    private long rosterVersion = -1; // last USERS_SNAPSHOT/USER_JOINED/USER_LEFT version applied
+    private boolean rosterResyncPending;
     private final DateTimeFormatter timeFmt = DateTimeFormatter.ofPattern("HH:mm");
 
     // ─────────────────────────────────────────────────────────────────────────
@@ -94,8 +160,16 @@ public class AppClient extends JFrame {
         disconnectButton = makeIconButton("✖", new Color(200, 50, 50), "Disconnect");
         disconnectButton.addActionListener(e -> disconnect());
 
+        joinRoomButton = makeIconButton("#", APP_GREEN, "Join Room");
+        joinRoomButton.addActionListener(e -> promptJoinRoom());
+
+        JPanel sidebarActions = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 8));
+        sidebarActions.setOpaque(false);
+        sidebarActions.add(joinRoomButton);
+        sidebarActions.add(disconnectButton);
+
         sidebarHeader.add(appName, BorderLayout.WEST);
-        sidebarHeader.add(disconnectButton, BorderLayout.EAST);
+        sidebarHeader.add(sidebarActions, BorderLayout.EAST);
 
         // Search bar
         JPanel searchBar = new JPanel(new BorderLayout(8, 0));
@@ -341,15 +415,162 @@ public class AppClient extends JFrame {
     private void setCurrentConversation(String conv) {
         currentConversation = conv.replace(" (Group)", "");
         headerNameLabel.setText(conv);
-        headerStatusLabel.setText(
-                currentConversation.equals("All") ? "Group Chat" : "Private Chat");
+        headerStatusLabel.setText(currentConversation.equals("All") ? "Group Chat"
+                : isRoom(currentConversation) ? "Room" : "Private Chat");
         messagesPanel.removeAll();
+        loadOlderRow = null;
+        historyItems.clear();
         addInfoMessage("Conversation: " + conv);
+        requestHistory(0);
         messagesPanel.revalidate();
         messagesPanel.repaint();
         inputField.requestFocusInWindow();
     }
 
+    // ─── History ─────────────────────────────────────────────────────────────
+    private static final int HISTORY_PAGE = 50;
+
+    /** Asks for the page of the current conversation before {@code beforeSeq} (0 = latest). */
+    private void requestHistory(long beforeSeq) {
+        historyBefore = beforeSeq;
+        if (history && out != null)
+            sendLine("HISTORY:" + currentConversation + ":" + beforeSeq + ":" + HISTORY_PAGE);
+    }
+
+    /** HISTORY_ITEM lines are collected until HISTORY_END, then shown above what is already there. */
+    private void receiveHistoryItem(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length >= 3 && parts[1].equals(currentConversation))
+            historyItems.add(parts[2]);
+    }
+
+    private void finishHistoryPage(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3 || !parts[1].equals(currentConversation)) {
+            historyItems.clear();
+            return; // answer for a conversation we already left
+        }
+        long cursor = Long.parseLong(parts[2]);
+        boolean initial = historyBefore == 0;
+
+        historyRows = new ArrayList<>();
+        for (String item : historyItems)
+            renderHistoryItem(item);
+        historyItems.clear();
+        historyTime = 0;
+        List<Component> rows = historyRows;
+        historyRows = null;
+
+        JPanel older = cursor == 0 ? null : newLoadOlderRow(cursor);
+        JPanel previous = loadOlderRow;
+        loadOlderRow = older;
+        SwingUtilities.invokeLater(() -> {
+            int index = 0;
+            if (previous != null) {
+                messagesPanel.remove(previous);
+            }
+            if (older != null)
+                messagesPanel.add(older, index++);
+            for (Component row : rows) {
+                messagesPanel.add(row, index++);
+                messagesPanel.add(Box.createVerticalStrut(4), index++);
+            }
+            messagesPanel.revalidate();
+            messagesPanel.repaint();
+            if (initial)
+                scrollToBottom();
+        });
+    }
+
+    // seq:time:kind:from:body
+    private void renderHistoryItem(String item) {
+        String[] parts = item.split(":", 5);
+        if (parts.length < 5)
+            return;
+        historyTime = Long.parseLong(parts[1]);
+        String kind = parts[2], from = parts[3], body = parts[4];
+        boolean mine = from.equals(userName);
+        switch (kind) {
+            case "G":
+                String text = body.startsWith(from + ": ") ? body.substring(from.length() + 2) : body;
+                if (mine)
+                    addBubble(text, true, null);
+                else
+                    addSenderBubble(from, text);
+                break;
+            case "P":
+                if (mine)
+                    addBubble(body, true, "To " + currentConversation);
+                else
+                    addSenderBubble(from + " (private)", body);
+                break;
+            case "GI":
+                showImageByHash(body, mine, mine ? null : from, false);
+                break;
+            case "PI":
+                showImageByHash(body, mine, mine ? "To " + currentConversation : "From " + from, false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private JPanel newLoadOlderRow(long cursor) {
+        JButton button = new JButton("Load older messages");
+        button.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        button.setForeground(APP_GREEN);
+        button.setContentAreaFilled(false);
+        button.setBorder(new EmptyBorder(4, 10, 4, 10));
+        button.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        button.addActionListener(e -> {
+            button.setEnabled(false);
+            requestHistory(cursor);
+        });
+        JPanel row = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 4));
+        row.setOpaque(false);
+        row.setMaximumSize(new Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        row.add(button);
+        return row;
+    }
+
+    /** Bubble time: now, or the original time while rendering history. */
+    private String bubbleTime() {
+        if (historyTime > 0)
+            return Instant.ofEpochMilli(historyTime).atZone(ZoneId.systemDefault()).toLocalTime().format(timeFmt);
+        return LocalTime.now().format(timeFmt);
+    }
+
+    // ─── Rooms ───────────────────────────────────────────────────────────────
+    private static boolean isRoom(String conversation) {
+        return conversation.startsWith("#");
+    }
+
+    private void promptJoinRoom() {
+        if (out == null)
+            return;
+        String room = JOptionPane.showInputDialog(this, "Room name:", "Join Room", JOptionPane.PLAIN_MESSAGE);
+        if (room != null && !room.trim().isEmpty())
+            sendLine("/join " + room.trim().replaceFirst("^#", ""));
+    }
+
+    /** ROOM_JOINED:room - the room goes into the conversation list and is opened. */
+    private void roomJoined(String room) {
+        String conv = "#" + room;
+        if (!conversationsListModel.contains(conv))
+            conversationsListModel.addElement(conv);
+        conversationsList.setSelectedValue(conv, true);
+        setCurrentConversation(conv);
+    }
+
+    private void roomLeft(String room) {
+        String conv = "#" + room;
+        conversationsListModel.removeElement(conv);
+        if (currentConversation.equals(conv)) {
+            conversationsList.setSelectedIndex(0);
+            setCurrentConversation(conversationsListModel.getElementAt(0));
+        }
+    }
+
     private void startPrivateChat(String user) {
         if (!conversationsListModel.contains(user))
             conversationsListModel.addElement(user);
@@ -365,9 +586,11 @@ public class AppClient extends JFrame {
         if (out != null) {
             String notif = "[" + userName + " started a video call]";
             if (currentConversation.equals("All")) {
-                out.println(notif);
+                sendLine(notif);
+            } else if (isRoom(currentConversation)) {
+                sendLine("ROOM_MSG:" + currentConversation.substring(1) + ":" + notif);
             } else {
-                out.println("MSG_PRIVATE:" + currentConversation + ":" + notif);
+                sendLine("MSG_PRIVATE:" + currentConversation + ":" + notif);
             }
         }
         addInfoMessage("You started a video call with " + target);
@@ -382,47 +605,174 @@ public class AppClient extends JFrame {
         if (text.isEmpty() || out == null)
             return;
 
-        if (currentConversation.equals("All")) {
-            out.println(text);
+        if (currentConversation.equals("All") && text.startsWith("/")) {
+            sendLine(text);
             addBubble(text, true, null);
+        } else if (currentConversation.equals("All")) {
+            sendChat(text, addBubble(text, true, null));
+        } else if (isRoom(currentConversation) && text.startsWith("/")) {
+            // Commands still go to the server; a bare /leave means this room
+            sendLine(text.equals("/leave") ? "/leave " + currentConversation.substring(1) : text);
+        } else if (isRoom(currentConversation)) {
+            sendChat("ROOM_MSG:" + currentConversation.substring(1) + ":" + text, addBubble(text, true, null));
         } else {
-            out.println("MSG_PRIVATE:" + currentConversation + ":" + text);
-            addBubble(text, true, "To " + currentConversation);
+            sendChat("MSG_PRIVATE:" + currentConversation + ":" + text,
+                    addBubble(text, true, "To " + currentConversation));
         }
         inputField.setText("");
     }
 
+    // Fewer than the server remembers (MessageAcks.WINDOW), so a resend is always recognised
+    private static final int UNACKED_WINDOW = 128;
+
+    /** A chat line the server has not acknowledged yet, and the time label of its bubble. */
+    private static class Unacked {
+        final String line;
+        final JLabel time;
+        final String sentAt;
+
+        Unacked(String line, JLabel time) {
+            this.line = line;
+            this.time = time;
+            this.sentAt = time.getText();
+        }
+
+        void mark(String status) {
+            time.setText(sentAt + " " + status);
+        }
+    }
+
+    /**
+     * Sends a chat line. With acks it goes out as MSG_ID:id:line and its
+     * bubble shows 🕓 until the server's ACK turns it into ✓; if the
+     * connection drops first, it is sent again after reconnecting, and one
+     * written while reconnecting waits for that.
+     */
+    private void sendChat(String line, JLabel time) {
+        if (!acks) {
+            sendLine(line);
+            return;
+        }
+        long id = nextMessageId.incrementAndGet();
+        if (unacked.size() >= UNACKED_WINDOW) {
+            Iterator<Unacked> oldest = unacked.values().iterator();
+            oldest.next().mark("⚠ not confirmed");
+            oldest.remove();
+        }
+        Unacked pending = new Unacked(line, time);
+        unacked.put(id, pending);
+        pending.mark("🕓");
+        if (!reconnecting)
+            sendLine("MSG_ID:" + id + ":" + line);
+    }
+
+    // ACK:id:seq - the server has the message; seq is its place in the server's order
+    private void onAck(LineDispatcher.Fields f) {
+        Unacked sent = unacked.remove(f.number(0));
+        if (sent != null)
+            sent.mark("✓");
+    }
+
+    private static final int CHUNK_BYTES = 32 * 1024;
+
     private void sendImage() {
         JFileChooser fc = new JFileChooser();
         fc.setDialogTitle("Choose Image");
         fc.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
                 "Images", "jpg", "jpeg", "png", "gif", "bmp"));
 
+        if (isRoom(currentConversation)) {
+            addError("Images can't be sent to rooms yet");
+            return;
+        }
         if (fc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             try {
                 BufferedImage img = ImageIO.read(fc.getSelectedFile());
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 ImageIO.write(img, "png", baos);
-                String b64 = Base64.getEncoder().encodeToString(baos.toByteArray());
-
-                if (currentConversation.equals("All")) {
-                    out.println("IMAGE:" + b64);
-                    addImageBubble(img, true, null);
-                } else {
-                    out.println("IMG_PRIVATE:" + currentConversation + ":" + b64);
-                    addImageBubble(img, true, "To " + currentConversation);
+                byte[] png = baos.toByteArray();
+                String to = currentConversation.equals("All") ? null : currentConversation;
+
+                if (media) {
+                    String hash = MediaStore.hash(png);
+                    mediaCache.put(hash, img);
+                    if (serverMedia.contains(hash)) {
+                        // The server already stores these bytes; send only the reference
+                        reuploads.put(hash, () -> transmitImage(png, img, to, false));
+                        sendLine("IMG_REF:" + hash + ":" + (to == null ? "G:" : "P:" + to));
+                        addImageBubble(img, true, to == null ? null : "To " + to);
+                        return;
+                    }
+                    serverMedia.add(hash);
                 }
+                transmitImage(png, img, to, true);
             } catch (IOException ex) {
                 addError("Failed to send image: " + ex.getMessage());
             }
         }
     }
 
+    /** Uploads image bytes in whichever form the server accepted; {@code to} is null for the group. */
+    private void transmitImage(byte[] png, BufferedImage img, String to, boolean showBubble) {
+        String label = to == null ? null : "To " + to;
+        if (chunked) {
+            ImageProgressBubble bubble = showBubble ? addProgressBubble(true, label) : null;
+            Thread upload = new Thread(() -> uploadImage(png, img, to, bubble), "image-upload");
+            upload.setDaemon(true);
+            upload.start();
+            return;
+        }
+        if (to == null) {
+            if (binary)
+                sendFrame(FrameCodec.imageFrame((byte) 0, "", png));
+            else
+                sendLine("IMAGE:" + Base64.getEncoder().encodeToString(png));
+        } else {
+            if (binary)
+                sendFrame(FrameCodec.imageFrame(FrameCodec.FLAG_PRIVATE, to, png));
+            else
+                sendLine("IMG_PRIVATE:" + to + ":" + Base64.getEncoder().encodeToString(png));
+        }
+        if (showBubble)
+            addImageBubble(img, true, label);
+    }
+
+    /**
+     * Streams one image as IMG_BEGIN, bounded chunks and IMG_END. Each piece is
+     * a separate write, so text typed meanwhile goes out between chunks.
+     */
+    private void uploadImage(byte[] png, BufferedImage img, String to, ImageProgressBubble bubble) {
+        long id = nextTransferId.incrementAndGet();
+        activeUploads.add(id);
+        if (bubble != null)
+            uploadBubbles.put(id, bubble);
+        sendLine("IMG_BEGIN:" + id + ":" + png.length + ":" + (to == null ? "G:" : "P:" + to));
+        for (int offset = 0; offset < png.length && connected && activeUploads.contains(id); offset += CHUNK_BYTES) {
+            byte[] piece = Arrays.copyOfRange(png, offset, Math.min(png.length, offset + CHUNK_BYTES));
+            if (binary)
+                sendFrame(FrameCodec.chunkFrame(id, piece));
+            else
+                sendLine("IMG_CHUNK:" + id + ":" + Base64.getEncoder().encodeToString(piece));
+            int sent = offset + piece.length;
+            if (bubble != null)
+                SwingUtilities.invokeLater(() -> bubble.setProgress(sent, png.length));
+        }
+        uploadBubbles.remove(id);
+        if (activeUploads.remove(id)) {
+            sendLine("IMG_END:" + id);
+            if (bubble != null)
+                SwingUtilities.invokeLater(() -> bubble.complete(img));
+        }
+    }
+
     private void disconnect() {
         connected = false;
         if (out != null) {
-            out.println("/quit");
-            out.close();
+            sendLine("/quit");
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
         }
         usersListModel.clear();
         conversationsListModel.clear();
@@ -432,12 +782,14 @@ public class AppClient extends JFrame {
         sendImageButton.setEnabled(false);
         videoCallButton.setEnabled(false);
         disconnectButton.setEnabled(false);
+        joinRoomButton.setEnabled(false);
         headerStatusLabel.setText("Disconnected");
     }
 
     // ─── Bubble rendering ────────────────────────────────────────────────────
-    private void addBubble(String text, boolean sent, String label) {
-        String time = LocalTime.now().format(timeFmt);
+    /** Adds a text bubble; returns its time label. */
+    private JLabel addBubble(String text, boolean sent, String label) {
+        String time = bubbleTime();
         Color bg = sent ? APP_SENT_BUBBLE : APP_RECV_BUBBLE;
 
         JPanel bubble = new JPanel() {
@@ -478,10 +830,11 @@ public class AppClient extends JFrame {
         bubble.add(timeLabel);
 
         addBubbleRow(bubble, sent);
+        return timeLabel;
     }
 
     private void addSenderBubble(String sender, String text) {
-        String time = LocalTime.now().format(timeFmt);
+        String time = bubbleTime();
         JPanel bubble = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
@@ -521,6 +874,20 @@ public class AppClient extends JFrame {
     }
 
     private void addImageBubble(BufferedImage img, boolean sent, String label) {
+        JPanel bubble = newImageBubble(sent, label);
+        Image scaled = img.getScaledInstance(220, -1, Image.SCALE_SMOOTH);
+        bubble.add(new JLabel(new ImageIcon(scaled)));
+        addBubbleRow(bubble, sent);
+    }
+
+    /** An image bubble that shows a progress bar until the image has arrived. */
+    private ImageProgressBubble addProgressBubble(boolean sent, String label) {
+        ImageProgressBubble progress = new ImageProgressBubble(newImageBubble(sent, label));
+        addBubbleRow(progress.bubble, sent);
+        return progress;
+    }
+
+    private JPanel newImageBubble(boolean sent, String label) {
         Color bg = sent ? APP_SENT_BUBBLE : APP_RECV_BUBBLE;
         JPanel bubble = new JPanel() {
             @Override
@@ -546,10 +913,53 @@ public class AppClient extends JFrame {
             bubble.add(lbl);
             bubble.add(Box.createVerticalStrut(4));
         }
+        return bubble;
+    }
 
-        Image scaled = img.getScaledInstance(220, -1, Image.SCALE_SMOOTH);
-        bubble.add(new JLabel(new ImageIcon(scaled)));
-        addBubbleRow(bubble, sent);
+    private static class ImageProgressBubble {
+        final JPanel bubble;
+        final JProgressBar bar = new JProgressBar(0, 1000);
+
+        ImageProgressBubble(JPanel bubble) {
+            this.bubble = bubble;
+            bar.setPreferredSize(new Dimension(220, 10));
+            bar.setForeground(APP_GREEN);
+            bubble.add(bar);
+        }
+
+        void setProgress(long done, long total) {
+            bar.setValue(total > 0 ? (int) (done * 1000 / total) : 0);
+        }
+
+        void complete(BufferedImage img) {
+            bubble.remove(bar);
+            bubble.add(new JLabel(new ImageIcon(img.getScaledInstance(220, -1, Image.SCALE_SMOOTH))));
+            bubble.revalidate();
+            bubble.repaint();
+        }
+
+        void fail(String reason) {
+            bubble.remove(bar);
+            JLabel lbl = new JLabel("⚠ " + reason);
+            lbl.setFont(new Font("Segoe UI", Font.ITALIC, 12));
+            lbl.setForeground(new Color(90, 90, 90));
+            bubble.add(lbl);
+            bubble.revalidate();
+            bubble.repaint();
+        }
+    }
+
+    /** A chunked image being received; bounded by the size the server announced. */
+    private static class IncomingImage {
+        final ImageProgressBubble bubble;
+        final ByteArrayOutputStream data;
+        final int total;
+
+        IncomingImage(ImageProgressBubble bubble, int total) {
+            this.bubble = bubble;
+            this.total = total;
+            this.data = new ByteArrayOutputStream(total);
+        }
     }
 
     private void addBubbleRow(JPanel bubble, boolean sent) {
@@ -557,6 +967,10 @@ public class AppClient extends JFrame {
         row.setOpaque(false);
         row.setMaximumSize(new Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE));
         row.add(bubble);
+        if (historyRows != null) {
+            historyRows.add(row);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             messagesPanel.add(row);
             messagesPanel.add(Box.createVerticalStrut(4));
@@ -621,114 +1035,692 @@ public class AppClient extends JFrame {
 
     // ─── Connection ───────────────────────────────────────────────────────────
     public void connect() {
+        String name = JOptionPane.showInputDialog(this,
+                "Enter your username:", "Talksy Login", JOptionPane.PLAIN_MESSAGE);
+        if (name == null || name.trim().isEmpty())
+            name = "User" + (int) (Math.random() * 1000);
+        userName = name.trim();
         try {
-            Socket socket = new Socket("localhost", 9999);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            String name = JOptionPane.showInputDialog(this,
-                    "Enter your username:", "Talksy Login", JOptionPane.PLAIN_MESSAGE);
-            if (name == null || name.trim().isEmpty())
-                name = "User" + (int) (Math.random() * 1000);
-            userName = name.trim();
-            out.println("USERNAME:" + userName);
-            setTitle("Talksy — " + userName);
-            headerStatusLabel.setText("Online");
+            open();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this,
+                    "Could not connect to server.\n" + e.getMessage(),
+                    "Connection Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(0);
+        }
+        setTitle("Talksy — " + userName);
+        headerStatusLabel.setText("Online");
+        addInfoMessage("Connected as \"" + userName + "\"");
+        requestHistory(0);
 
-            addInfoMessage("Connected as \"" + userName + "\"");
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                disconnect();
+            }
+        });
+    }
 
-            Thread reader = new Thread(() -> {
-                try {
-                    String line;
-                    while (connected && (line = in.readLine()) != null) {
-                        final String msg = line;
+    /**
+     * Connects, negotiates capabilities and logs in as {@code userName},
+     * resuming the previous login if the server gave us a token, then starts
+     * the reader. Used for the first connection and every reconnect.
+     */
+    private void open() throws IOException {
+        Socket socket = new Socket("localhost", Integer.getInteger("chat.port", 9999));
+        try {
+            login(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void login(Socket socket) throws IOException {
+        // Byte-level input so the stream can switch to binary frames after HELLO
+        InputStream raw = new BufferedInputStream(socket.getInputStream());
+        synchronized (this) {
+            this.socket = socket;
+            out = new BufferedOutputStream(socket.getOutputStream());
+            binary = false;
+        }
+        // Ask for roster deltas and binary framing; the server answers HELLO_OK
+        sendLine("HELLO:presence," + FrameCodec.CAP_BINARY + "," + ImageTransfers.CAP_CHUNKED
+                + "," + MediaStore.CAP_MEDIA + "," + ChatHistory.CAP_HISTORY
+                + "," + OfflineMailbox.CAP_OFFLINE + "," + Compression.CAP_DEFLATE
+                + "," + Heartbeat.CAP_HEARTBEAT + "," + Thumbnails.CAP_THUMBS
+                + "," + MessageAcks.CAP_ACKS);
+        List<String> caps = negotiate(socket, raw);
+        binary = caps.contains(FrameCodec.CAP_BINARY);
+        chunked = caps.contains(ImageTransfers.CAP_CHUNKED);
+        media = caps.contains(MediaStore.CAP_MEDIA);
+        thumbs = caps.contains(Thumbnails.CAP_THUMBS);
+        history = caps.contains(ChatHistory.CAP_HISTORY);
+        acks = caps.contains(MessageAcks.CAP_ACKS);
+        InputStream in = raw;
+        if (caps.contains(Compression.CAP_DEFLATE)) {
+            // Both directions are deflated from here on; flush() ends each message
+            in = new BufferedInputStream(new InflaterInputStream(raw, Compression.newInflater()));
+            synchronized (this) {
+                out = new DeflaterOutputStream(socket.getOutputStream(), Compression.newDeflater(), 8192, true);
+            }
+        }
+        final InputStream input = in;
+        String token = resumeToken;
+        loginPending = socket;
+        sendLine(acks && token != null ? "RESUME:" + token + ":" + userName : "USERNAME:" + userName);
+
+        Thread reader = new Thread(() -> {
+            try {
+                while (connected) {
+                    if (binary) {
+                        FrameCodec.Frame frame = FrameCodec.readFrame(input);
+                        if (frame == null)
+                            break;
+                        if (frame.type == FrameCodec.TYPE_IMAGE) {
+                            receiveImageFrame(frame);
+                        } else if (frame.type == FrameCodec.TYPE_CHUNK) {
+                            long id = frame.transferId();
+                            byte[] piece = frame.chunk();
+                            SwingUtilities.invokeLater(() -> receiveChunk(id, piece));
+                        } else {
+                            final String msg = frame.text();
+                            SwingUtilities.invokeLater(() -> processMessage(msg));
+                        }
+                    } else {
+                        final String msg = FrameCodec.readLine(input, EncodedMessage.CHARSET);
+                        if (msg == null)
+                            break;
                         SwingUtilities.invokeLater(() -> processMessage(msg));
                     }
-                } catch (IOException e) {
-                    if (connected)
-                        SwingUtilities.invokeLater(
-                                () -> addInfoMessage("Disconnected from server."));
                 }
-            });
-            reader.setDaemon(true);
-            reader.start();
+            } catch (IOException ignored) {
+                // Same as the server closing on us
+            }
+            if (connected)
+                SwingUtilities.invokeLater(() -> connectionLost(socket));
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
 
-            addWindowListener(new WindowAdapter() {
-                @Override
-                public void windowClosing(WindowEvent e) {
-                    disconnect();
+    // ─── Reconnecting ─────────────────────────────────────────────────────────
+    /** The server went away without us asking; keep trying to get back (EDT). */
+    private void connectionLost(Socket lost) {
+        if (!connected || lost != socket)
+            return;
+        try {
+            lost.close();
+        } catch (IOException ignored) {
+        }
+        loginPending = null;
+        resumePending = false;
+        if (loginRejected != null && !chooseNewName())
+            return;
+        if (!reconnecting) {
+            reconnecting = true;
+            addInfoMessage("Disconnected from server; reconnecting…");
+        }
+        headerStatusLabel.setText("Reconnecting…");
+        activeUploads.clear();
+        for (IncomingImage image : incoming.values())
+            image.bubble.fail("Connection lost");
+        incoming.clear();
+        Thread retry = new Thread(() -> {
+            while (connected) {
+                try {
+                    Thread.sleep(reconnectDelay);
+                    // Backs off across attempts, even ones that connect but can't log in
+                    reconnectDelay = Math.min(reconnectDelay * 2, 15_000);
+                    // Connected is not logged in: the Welcome calls reconnected(), a refusal comes back here
+                    open();
+                    return;
+                } catch (IOException e) {
+                    // Server still down; try again
+                } catch (InterruptedException e) {
+                    return;
                 }
-            });
+            }
+        }, "reconnect");
+        retry.setDaemon(true);
+        retry.start();
+    }
 
+    /**
+     * The server refused our login, so retrying it as it is won't help. Asks
+     * for a name to log in with; returns false, leaving us offline, if the
+     * user cancels.
+     */
+    private boolean chooseNewName() {
+        String reason = loginRejected;
+        loginRejected = null;
+        String name = (String) JOptionPane.showInputDialog(this,
+                reason + "\nLog in again as:", "Talksy Login", JOptionPane.WARNING_MESSAGE,
+                null, null, userName);
+        if (name == null || name.trim().isEmpty()) {
+            for (Unacked pending : unacked.values())
+                pending.mark("⚠ not sent");
+            unacked.clear();
+            synchronized (this) {
+                out = null; // the socket is gone; nothing to say /quit on
+            }
+            disconnect();
+            return false;
+        }
+        if (!name.trim().equals(userName)) {
+            userName = name.trim();
+            resumeToken = null; // it belongs to the old name
+            setTitle("Talksy — " + userName);
+        }
+        return true;
+    }
+
+    /** SYSTEM:text; the Welcome one means the login we sent was accepted. */
+    private void onSystem(String text) {
+        if (loginPending == socket && text.startsWith("Welcome")) {
+            loginPending = null;
+            resumePending = acks;
+            reconnectDelay = 500;
+            if (reconnecting)
+                reconnected();
+        }
+        addInfoMessage("ℹ " + text);
+    }
+
+    /** Logged in again: resend what the server never acknowledged, in the order it was written. */
+    private void reconnected() {
+        reconnecting = false;
+        headerStatusLabel.setText("Online");
+        addInfoMessage("Reconnected");
+        if (!acks)
+            return;
+        for (Map.Entry<Long, Unacked> pending : unacked.entrySet())
+            sendLine("MSG_ID:" + pending.getKey() + ":" + pending.getValue().line);
+    }
+
+    /** Waits briefly for HELLO_OK; returns the capabilities the server accepted. */
+    private List<String> negotiate(Socket socket, InputStream in) throws IOException {
+        socket.setSoTimeout(5000);
+        try {
+            String reply = FrameCodec.readLine(in, EncodedMessage.CHARSET);
+            if (reply == null || !reply.startsWith("HELLO_OK:")) {
+                if (reply != null)
+                    SwingUtilities.invokeLater(() -> processMessage(reply));
+                return Collections.emptyList();
+            }
+            return Arrays.asList(reply.substring(9).split(","));
+        } catch (SocketTimeoutException e) {
+            return Collections.emptyList(); // older server: stay on the text protocol
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /** Sends one protocol line, as text or as a line frame depending on the negotiated mode. */
+    private synchronized void sendLine(String line) {
+        if (binary)
+            sendFrame(FrameCodec.lineFrame(line));
+        else
+            sendFrame((line + "\n").getBytes(EncodedMessage.CHARSET));
+    }
+
+    private synchronized void sendFrame(byte[] bytes) {
+        try {
+            out.write(bytes);
+            out.flush();
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this,
-                    "Could not connect to server.\n" + e.getMessage(),
-                    "Connection Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(0);
+            addError("Send failed: " + e.getMessage());
+        }
+    }
+
+    /** Decodes a binary image frame off the EDT, then shows it like its text counterpart. */
+    private void receiveImageFrame(FrameCodec.Frame frame) {
+        String peer = frame.peer();
+        if (frame.hasFlag(FrameCodec.FLAG_MEDIA)) {
+            receiveMedia(peer, frame.image());
+            return;
+        }
+        if (frame.hasFlag(FrameCodec.FLAG_THUMB)) {
+            receiveThumbnail(peer, frame.image());
+            return;
+        }
+        BufferedImage img;
+        try {
+            img = ImageIO.read(new ByteArrayInputStream(frame.image()));
+        } catch (IOException ex) {
+            img = null;
+        }
+        final BufferedImage image = img;
+        SwingUtilities.invokeLater(() -> {
+            if (image == null) {
+                addError("Received corrupt image from " + peer);
+            } else if (frame.hasFlag(FrameCodec.FLAG_ECHO)) {
+                addImageBubble(image, true, "To " + peer);
+            } else if (frame.hasFlag(FrameCodec.FLAG_PRIVATE)) {
+                if (!conversationsListModel.contains(peer))
+                    conversationsListModel.addElement(peer);
+                addImageBubble(image, false, "From " + peer);
+            } else {
+                addImageBubble(image, false, peer);
+            }
+        });
+    }
+
+    // ─── Chunked image receive (EDT) ─────────────────────────────────────────
+    /** IMG_BEGIN:relayId:totalBytes:G|P:sender */
+    private void beginIncomingImage(String message) {
+        String[] parts = message.split(":", 5);
+        if (parts.length < 5)
+            return;
+        String sender = parts[4];
+        boolean isPrivate = parts[3].equals("P");
+        if (isPrivate && !conversationsListModel.contains(sender))
+            conversationsListModel.addElement(sender);
+        ImageProgressBubble bubble = addProgressBubble(false, isPrivate ? "From " + sender : sender);
+        incoming.put(Long.parseLong(parts[1]), new IncomingImage(bubble, Integer.parseInt(parts[2])));
+    }
+
+    private void receiveChunk(long id, byte[] piece) {
+        IncomingImage image = incoming.get(id);
+        if (image == null)
+            return;
+        if (image.data.size() + piece.length > image.total) {
+            incoming.remove(id);
+            image.bubble.fail("Image larger than announced");
+            return;
         }
+        image.data.write(piece, 0, piece.length);
+        image.bubble.setProgress(image.data.size(), image.total);
+    }
+
+    private void finishIncomingImage(long id) {
+        IncomingImage image = incoming.remove(id);
+        if (image == null)
+            return;
+        byte[] bytes = image.data.toByteArray();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return ImageIO.read(new ByteArrayInputStream(bytes));
+            } catch (IOException ex) {
+                return null;
+            }
+        }).thenAccept(img -> SwingUtilities.invokeLater(() -> {
+            if (img != null)
+                image.bubble.complete(img);
+            else
+                image.bubble.fail("Corrupt image");
+        }));
+    }
+
+    // ─── Media references ────────────────────────────────────────────────────
+    /**
+     * IMAGE_REF:hash:size:G|P|E:peer. Shows the image straight from the cache
+     * when we have seen it before, otherwise fetches it once with MEDIA_GET.
+     */
+    private void receiveImageRef(String message) {
+        String[] parts = message.split(":", 5);
+        if (parts.length < 5)
+            return;
+        String hash = parts[1], kind = parts[3], peer = parts[4];
+        boolean sent = kind.equals("E");
+        String label = sent ? "To " + peer : kind.equals("P") ? "From " + peer : peer;
+        if (kind.equals("P") && !conversationsListModel.contains(peer))
+            conversationsListModel.addElement(peer);
+        serverMedia.add(hash);
+        showImageByHash(hash, sent, label, true);
+    }
+
+    /**
+     * Shows an image from the cache, a preview that opens the full image on
+     * click if the server sends previews, or else a placeholder that MEDIA_GET
+     * fills in. Previews of live images come unasked; history asks for them.
+     */
+    private void showImageByHash(String hash, boolean sent, String label, boolean live) {
+        BufferedImage cached = mediaCache.get(hash);
+        if (cached != null) {
+            addImageBubble(cached, sent, label);
+            return;
+        }
+        if (thumbs) {
+            if (addPreviewBubble(hash, sent, label) && !live)
+                sendLine("THUMB_GET:" + hash);
+            return;
+        }
+        ImageProgressBubble bubble = addProgressBubble(sent, label);
+        bubble.bar.setIndeterminate(true);
+        List<ImageProgressBubble> waiting = pendingMedia.computeIfAbsent(hash, h -> new ArrayList<>());
+        waiting.add(bubble);
+        if (waiting.size() == 1)
+            sendLine("MEDIA_GET:" + hash);
+    }
+
+    /** Reply to MEDIA_GET; decoded off the EDT, then shown in every bubble waiting for it. */
+    private void receiveMedia(String hash, byte[] bytes) {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return ImageIO.read(new ByteArrayInputStream(bytes));
+            } catch (IOException ex) {
+                return null;
+            }
+        }).thenAccept(img -> SwingUtilities.invokeLater(() -> {
+            List<ImageProgressBubble> waiting = pendingMedia.remove(hash);
+            if (img != null)
+                mediaCache.put(hash, img);
+            if (opening.remove(hash) && img != null)
+                showImageWindow(img);
+            if (waiting == null)
+                return;
+            for (ImageProgressBubble bubble : waiting) {
+                if (img != null)
+                    bubble.complete(img);
+                else
+                    bubble.fail("Corrupt image");
+            }
+        }));
+    }
+
+    /** The server no longer has an image: re-upload ours, or give up on a fetch. */
+    private void mediaMissing(String hash) {
+        serverMedia.remove(hash);
+        Runnable reupload = reuploads.remove(hash);
+        if (reupload != null)
+            reupload.run();
+        List<ImageProgressBubble> waiting = pendingMedia.remove(hash);
+        if (waiting != null)
+            for (ImageProgressBubble bubble : waiting)
+                bubble.fail("Image no longer available");
+        if (opening.remove(hash))
+            addError("That image is no longer available");
+    }
+
+    // ─── Previews ────────────────────────────────────────────────────────────
+    /** A bubble that shows the server's preview once it arrives; returns true if none was awaited yet. */
+    private boolean addPreviewBubble(String hash, boolean sent, String label) {
+        JPanel bubble = newImageBubble(sent, label);
+        JLabel preview = new JLabel("🖼 Image — click to open");
+        preview.setFont(new Font("Segoe UI", Font.ITALIC, 12));
+        preview.setForeground(new Color(90, 90, 90));
+        preview.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        preview.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                openImage(hash);
+            }
+        });
+        bubble.add(preview);
+        addBubbleRow(bubble, sent);
+        List<JLabel> waiting = pendingThumbs.computeIfAbsent(hash, h -> new ArrayList<>());
+        waiting.add(preview);
+        return waiting.size() == 1;
+    }
+
+    /** THUMB:hash:base64, already scaled by the server; decoded off the EDT. */
+    private void receiveThumbnail(String hash, byte[] bytes) {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return ImageIO.read(new ByteArrayInputStream(bytes));
+            } catch (IOException ex) {
+                return null;
+            }
+        }).thenAccept(img -> SwingUtilities.invokeLater(() -> {
+            List<JLabel> waiting = pendingThumbs.remove(hash);
+            if (img == null || waiting == null)
+                return;
+            ImageIcon icon = new ImageIcon(img);
+            for (JLabel preview : waiting) {
+                preview.setText(null);
+                preview.setIcon(icon);
+                preview.setToolTipText("Click to open");
+                preview.revalidate();
+            }
+        }));
+    }
+
+    /** Opens the full image, fetching it first unless it is cached. */
+    private void openImage(String hash) {
+        BufferedImage cached = mediaCache.get(hash);
+        if (cached != null)
+            showImageWindow(cached);
+        else if (opening.add(hash))
+            sendLine("MEDIA_GET:" + hash);
+    }
+
+    private void showImageWindow(BufferedImage img) {
+        JDialog viewer = new JDialog(this, "Image", false);
+        JScrollPane scroll = new JScrollPane(new JLabel(new ImageIcon(img)));
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        scroll.setPreferredSize(new Dimension(Math.min(img.getWidth() + 4, screen.width * 4 / 5),
+                Math.min(img.getHeight() + 4, screen.height * 4 / 5)));
+        viewer.add(scroll);
+        viewer.pack();
+        viewer.setLocationRelativeTo(this);
+        viewer.setVisible(true);
     }
 
     // ─── Message processing ───────────────────────────────────────────────────
     private void processMessage(String message) {
-        if (message.startsWith("USERS_LIST:")) {
-            String[] users = message.substring(11).split(",");
-            usersListModel.clear();
-            for (String u : users)
+        if (!PROTOCOL.dispatch(this, message, fields))
+            addReceivedBroadcast(message);
+    }
+
+    /** Server lines by keyword; anything else is a group message ("sender: text"). EDT only. */
+    private static final LineDispatcher<AppClient> PROTOCOL = new LineDispatcher<AppClient>(':')
+            .on("USERS_LIST", 1, AppClient::onUsersList)
+            .on("USERS_SNAPSHOT", 2, AppClient::onUsersSnapshot)
+            .on("USER_JOINED", 2, AppClient::applyPresenceDelta)
+            .on("USER_LEFT", 2, AppClient::applyPresenceDelta)
+            .on("USERS_DELTA", 2, AppClient::applyPresenceDelta)
+            .on("PRIVATE", 2, AppClient::onPrivate)
+            .on("PRIVATE_TO", 2, (c, f) -> {
+                if (f.count() == 2)
+                    c.addBubble(f.get(1), true, "To " + f.get(0));
+            })
+            .on("IMAGE_PRIVATE", 2, AppClient::onPrivateImage)
+            .on("IMAGE_PRIVATE_TO", 2, AppClient::onPrivateImage)
+            .on("HISTORY_ITEM", 1, (c, f) -> c.receiveHistoryItem(f.line()))
+            .on("HISTORY_END", 1, (c, f) -> c.finishHistoryPage(f.line()))
+            .on("IMAGE_REF", 1, (c, f) -> c.receiveImageRef(f.line()))
+            .on("MEDIA", 2, (c, f) -> {
+                if (f.count() == 2)
+                    c.receiveMedia(f.get(0), Base64.getDecoder().decode(f.get(1)));
+            })
+            .on("MEDIA_MISSING", 1, (c, f) -> {
+                if (f.count() == 1)
+                    c.mediaMissing(f.get(0));
+            })
+            .on("ACK", 2, AppClient::onAck)
+            // RESUME:token - logged in; the token lets a reconnect take this login over
+            .on("RESUME", 1, (c, f) -> {
+                // Only as the last step of our own login
+                if (f.count() != 1 || !c.resumePending)
+                    return;
+                c.resumePending = false;
+                c.resumeToken = f.get(0);
+            })
+            .on("THUMB", 2, (c, f) -> {
+                if (f.count() == 2)
+                    c.receiveThumbnail(f.get(0), Base64.getDecoder().decode(f.get(1)));
+            })
+            .on("IMG_BEGIN", 1, (c, f) -> c.beginIncomingImage(f.line()))
+            .on("IMG_CHUNK", 2, (c, f) -> {
+                if (f.count() == 2)
+                    c.receiveChunk(f.number(0), Base64.getDecoder().decode(f.get(1)));
+            })
+            .on("IMG_END", 1, (c, f) -> c.finishIncomingImage(f.number(0)))
+            .on("IMG_ABORT", 2, AppClient::onImageAbort)
+            .on("IMG_REJECT", 2, AppClient::onImageReject)
+            // QUEUED:recipient:id - recipient is offline, the server holds it for them
+            .on("QUEUED", 2, (c, f) -> {
+                if (f.count() == 2)
+                    c.addInfoMessage("🕓 " + f.get(0) + " is offline; it will be delivered when they log in");
+            })
+            .on("DELIVERED", 2, AppClient::onDelivered)
+            .on("ROOM", 3, AppClient::onRoomMessage)
+            .on("ROOM_JOINED", 1, (c, f) -> {
+                if (f.count() == 1)
+                    c.roomJoined(f.get(0));
+            })
+            .on("ROOM_LEFT", 1, (c, f) -> {
+                if (f.count() == 1)
+                    c.roomLeft(f.get(0));
+            })
+            .on("ROOMS", 1, AppClient::onRooms)
+            // PING:n - the server hasn't heard from us for a while
+            .on("PING", 1, (c, f) -> c.sendLine("PONG:" + (f.count() == 1 ? f.get(0) : "")))
+            .on("SYSTEM", 1, (c, f) -> {
+                if (f.count() == 1)
+                    c.onSystem(f.get(0));
+            })
+            .on("ERROR", 1, (c, f) -> {
+                String error = f.count() == 1 ? f.get(0) : "Error";
+                if (c.loginPending == c.socket)
+                    c.loginRejected = error; // the server closes next; connectionLost asks what to do
+                c.addError(error);
+            });
+
+    private final LineDispatcher.Fields fields = new LineDispatcher.Fields();
+
+    private void onUsersList(LineDispatcher.Fields f) {
+        usersListModel.clear();
+        if (f.count() == 1)
+            for (String u : f.get(0).split(","))
                 if (!u.trim().isEmpty() && !u.trim().equals(userName))
                     usersListModel.addElement(u.trim());
-            int count = usersListModel.size();
-            headerStatusLabel.setText(count > 0 ? count + " online" : "No one else online");
-
-        } else if (message.startsWith("PRIVATE:")) {
-            String[] parts = message.split(":", 3);
-            if (parts.length >= 3) {
-                String sender = parts[1], content = parts[2];
-                if (!conversationsListModel.contains(sender))
-                    conversationsListModel.addElement(sender);
-                // Check for video call invite in private message
-                if (content.contains("started a video call")) {
-                    addVideoCallInvite(sender, sender);
-                } else {
-                    addSenderBubble(sender + " (private)", content);
-                }
-            }
-        } else if (message.startsWith("PRIVATE_TO:")) {
-            String[] parts = message.split(":", 3);
-            if (parts.length >= 3)
-                addBubble(parts[2], true, "To " + parts[1]);
-
-        } else if (message.startsWith("IMAGE_PRIVATE:")) {
-            String[] parts = message.split(":", 3);
-            if (parts.length >= 3) {
-                String sender = parts[1], imgData = parts[2];
-                if (!conversationsListModel.contains(sender))
-                    conversationsListModel.addElement(sender);
-                try {
-                    byte[] bytes = Base64.getDecoder().decode(imgData);
-                    BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
-                    addImageBubble(img, false, "From " + sender);
-                } catch (IOException ex) {
-                    addError("Failed to load image");
-                }
-            }
-        } else if (message.startsWith("IMAGE_PRIVATE_TO:")) {
-            String[] parts = message.split(":", 3);
-            if (parts.length >= 3) {
-                try {
-                    byte[] bytes = Base64.getDecoder().decode(parts[2]);
-                    BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
-                    addImageBubble(img, true, "To " + parts[1]);
-                } catch (IOException ex) {
-                    addError("Failed to load image");
-                }
+        updateOnlineCount();
+    }
+
+    private void onUsersSnapshot(LineDispatcher.Fields f) {
+        if (f.count() < 2)
+            return;
+        rosterVersion = f.number(0);
+        rosterResyncPending = false;
+        usersListModel.clear();
+        for (String u : f.get(1).split(","))
+            if (!u.isEmpty() && !u.equals(userName))
+                usersListModel.addElement(u);
+        updateOnlineCount();
+    }
+
+    private void onPrivate(LineDispatcher.Fields f) {
+        if (f.count() < 2)
+            return;
+        String sender = f.get(0), content = f.get(1);
+        if (!conversationsListModel.contains(sender))
+            conversationsListModel.addElement(sender);
+        // Check for video call invite in private message
+        if (content.contains("started a video call"))
+            addVideoCallInvite(sender, sender);
+        else
+            addSenderBubble(sender + " (private)", content);
+    }
+
+    /** IMAGE_PRIVATE:sender:base64 (received) or IMAGE_PRIVATE_TO:recipient:base64 (our echo). */
+    private void onPrivateImage(LineDispatcher.Fields f) {
+        if (f.count() < 2)
+            return;
+        boolean echo = f.line().startsWith("IMAGE_PRIVATE_TO:");
+        String peer = f.get(0);
+        if (!echo && !conversationsListModel.contains(peer))
+            conversationsListModel.addElement(peer);
+        try {
+            byte[] bytes = Base64.getDecoder().decode(f.get(1));
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
+            addImageBubble(img, echo, (echo ? "To " : "From ") + peer);
+        } catch (IOException ex) {
+            addError("Failed to load image");
+        }
+    }
+
+    private void onImageAbort(LineDispatcher.Fields f) {
+        IncomingImage image = incoming.remove(f.number(0));
+        if (image != null)
+            image.bubble.fail(f.count() == 2 ? f.get(1) : "Transfer aborted");
+    }
+
+    private void onImageReject(LineDispatcher.Fields f) {
+        long id = f.number(0);
+        activeUploads.remove(id);
+        ImageProgressBubble bubble = uploadBubbles.remove(id);
+        String reason = f.count() == 2 ? f.get(1) : "Upload refused";
+        if (bubble != null)
+            bubble.fail(reason);
+        else
+            addError(reason);
+    }
+
+    // DELIVERED:recipient:id,id,...
+    private void onDelivered(LineDispatcher.Fields f) {
+        if (f.count() < 2)
+            return;
+        int count = f.get(1).split(",").length;
+        addInfoMessage("✓ " + count + (count == 1 ? " held message" : " held messages")
+                + " delivered to " + f.get(0));
+    }
+
+    // ROOM:room:sender:text
+    private void onRoomMessage(LineDispatcher.Fields f) {
+        if (f.count() < 3)
+            return;
+        String room = "#" + f.get(0);
+        if (!conversationsListModel.contains(room))
+            conversationsListModel.addElement(room);
+        addSenderBubble(f.get(1) + " in " + room, f.get(2));
+    }
+
+    // ROOMS:room=members,...
+    private void onRooms(LineDispatcher.Fields f) {
+        StringBuilder rooms = new StringBuilder();
+        if (f.count() == 1)
+            for (String room : f.get(0).split(","))
+                if (!room.isEmpty())
+                    rooms.append(rooms.length() == 0 ? "#" : ", #").append(room.replace("=", " (")).append(')');
+        addInfoMessage("ℹ Rooms: " + (rooms.length() == 0 ? "none" : rooms));
+    }
+
+    /**
+     * USER_JOINED:version:name, USER_LEFT:version:name or
+     * USERS_DELTA:version:+name,-name (several changes batched by the server),
+     * applied in version order.
+     */
+    private void applyPresenceDelta(LineDispatcher.Fields f) {
+        if (f.count() < 2)
+            return;
+        long version = f.number(0);
+        if (rosterVersion < 0 || version <= rosterVersion)
+            return; // no snapshot yet, or already covered by a newer one
+        if (version != rosterVersion + 1) {
+            // Missed a delta; resync from a full snapshot
+            if (!rosterResyncPending) {
+                rosterResyncPending = true;
+                sendLine("/roster");
             }
-        } else if (message.startsWith("SYSTEM:")) {
-            addInfoMessage("ℹ " + message.substring(7));
-        } else if (message.startsWith("ERROR:")) {
-            addError(message.substring(6));
+            return;
+        }
+        rosterVersion = version;
+        if (f.line().startsWith("USERS_DELTA:")) {
+            for (String change : f.get(1).split(","))
+                if (change.length() > 1)
+                    applyPresenceChange(change.substring(1), change.charAt(0) == '+');
         } else {
-            addReceivedBroadcast(message);
+            applyPresenceChange(f.get(1), f.line().startsWith("USER_JOINED:"));
         }
+        updateOnlineCount();
+    }
+
+    private void applyPresenceChange(String user, boolean joined) {
+        if (user.equals(userName))
+            return;
+        if (joined) {
+            if (!usersListModel.contains(user))
+                usersListModel.addElement(user);
+        } else {
+            usersListModel.removeElement(user);
+        }
+    }
+
+    private void updateOnlineCount() {
+        int count = usersListModel.size();
+        headerStatusLabel.setText(count > 0 ? count + " online" : "No one else online");
     }
 
     private void addReceivedBroadcast(String message) {
@@ -924,7 +1916,7 @@ public class AppClient extends JFrame {
                 protected void paintComponent(Graphics g) {
                     Graphics2D g2 = (Graphics2D) g;
                     g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                    g2.setColor(name.equals("All") ? APP_DARK : APP_GREEN);
+                    g2.setColor(name.equals("All") || isRoom(name) ? APP_DARK : APP_GREEN);
                     g2.fillOval(0, 2, 36, 36);
                     g2.setColor(Color.WHITE);
                     g2.setFont(new Font("Segoe UI", Font.BOLD, 15));
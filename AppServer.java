@@ -1,38 +1,130 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AppServer {
-    private static final int PORT = 9999;
-    public static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static final List<ClientHandler> clientHandlers = new CopyOnWriteArrayList<>();
+    private static final int PORT = Integer.getInteger("chat.port", 9999);
+    static final SessionRegistry sessions = new SessionRegistry();
     
+    // Roster as presence-aware clients see it; version bumps on every join/leave
+    private static final Object rosterLock = new Object();
+    private static final Set<String> roster = new LinkedHashSet<>();
+    private static long rosterVersion;
+    static final PresenceAggregator presence = new PresenceAggregator(PresenceAggregator.WINDOW_MS);
+    static final MediaStore media = new MediaStore();
+    static final Thumbnails thumbnails = new Thumbnails();
+    static final MessageAcks acks = new MessageAcks();
+    static final ChatHistory history = openHistory();
+    static final OfflineMailbox offline = new OfflineMailbox();
+    static final Rooms rooms = new Rooms();
+    static final ClusterNode cluster = ClusterNode.start();
+    private static final Set<String> ADMINS = new HashSet<>(
+            Arrays.asList(System.getProperty("chat.admins", "").split(",")));
+    
+    /**
+     * Starts the server. The connection engine is chosen with
+     * {@code -Dchat.engine=blocking|nio} (default {@code blocking}); the NIO
+     * engine's event-loop count comes from {@code -Dchat.nio.loops}, and the
+     * blocking engine runs its handlers on the executor picked by
+     * {@code -Dchat.executor} (see {@link ConnectionExecutors}). The port is
+     * {@code -Dchat.port} (default 9999); several servers can be joined into
+     * one chat with the {@link ClusterNode} settings.
+     */
     public static void main(String[] args) {
-        System.out.println("WhatsApp Server starting on port " + PORT);
+        String engine = System.getProperty("chat.engine", "blocking");
+        System.out.println("WhatsApp Server starting on port " + PORT + " (" + engine + " engine)");
+        Metrics.startLogging(Integer.getInteger("chat.stats.logSeconds", 60));
+        try {
+            if (engine.equalsIgnoreCase("nio")) {
+                int loops = Integer.getInteger("chat.nio.loops",
+                        Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+                new NioChatServer(PORT, loops).run();
+            } else {
+                runBlocking();
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private static void runBlocking() throws IOException {
+        String mode = System.getProperty("chat.executor", "platform");
+        ExecutorService executor = ConnectionExecutors.create(mode,
+                Integer.getInteger("chat.executor.threads", 256));
+        ExecutorService writers = ConnectionExecutors.createWriters(mode);
+        startFootprintReport(Integer.getInteger("chat.executor.reportSeconds", 0));
+        
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is ready to accept connections...");
+            System.out.println("Server is ready to accept connections (" + mode + " executor)...");
             
             while (true) {
                 Socket socket = serverSocket.accept();
+                socket.setKeepAlive(true); // Finds dead peers that can't answer a heartbeat
                 System.out.println("New client connected: " + socket.getInetAddress());
                 
-                ClientHandler clientHandler = new ClientHandler(socket);
-                clientHandlers.add(clientHandler);
-                clientHandler.start();
+                executor.execute(new ClientHandler(socket, writers));
             }
+        } finally {
+            executor.shutdownNow();
+            writers.shutdownNow();
+        }
+    }
+    
+    private static void startFootprintReport(int periodSeconds) {
+        if (periodSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "footprint-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(
+                () -> System.out.println("[footprint] " + ConnectionExecutors.footprint()),
+                periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+    
+    private static ChatHistory openHistory() {
+        try {
+            return new ChatHistory(new MessageLog());
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("[history] disabled: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /** True if {@code name} is listed in {@code -Dchat.admins}. */
+    static boolean isAdmin(String name) {
+        return ADMINS.contains(name);
+    }
+    
+    /** Records a delivered message in the history log, if it could be opened. */
+    static void logMessage(byte kind, String from, String to, String body) {
+        if (history != null) {
+            history.record(kind, from, to, body);
         }
     }
     
+    /** Registers a freshly accepted connection so it receives broadcasts. */
+    public static void addSession(ChatSession session) {
+        sessions.add(session);
+        session.startHeartbeat();
+    }
+    
     public static void sendPrivateMessage(String sender, String recipient, String message) {
-        ClientHandler senderHandler = clients.get(sender);
-        ClientHandler recipientHandler = clients.get(recipient);
+        ChatSession senderHandler = sessions.get(sender);
+        ChatSession recipientHandler = sessions.get(recipient);
         
         if (recipientHandler != null) {
+            logMessage(MessageLog.KIND_PRIVATE, sender, recipient, message);
             // Send to recipient
             recipientHandler.sendMessage("PRIVATE:" + sender + ":" + message);
             
@@ -40,45 +132,333 @@ public class AppServer {
             if (senderHandler != null) {
                 senderHandler.sendMessage("PRIVATE_TO:" + recipient + ":" + message);
             }
-        } else {
-            // Recipient not found
+        } else if (cluster != null && cluster.relayPrivate(sender, recipient, message)) {
+            // Connected to another node, which delivers it
+            logMessage(MessageLog.KIND_PRIVATE, sender, recipient, message);
             if (senderHandler != null) {
-                senderHandler.sendMessage("ERROR:User " + recipient + " is not online.");
+                senderHandler.sendMessage("PRIVATE_TO:" + recipient + ":" + message);
             }
+        } else {
+            holdForOffline(senderHandler, sender, recipient, message, false);
         }
     }
     
-    public static void sendPrivateImage(String sender, String recipient, String imageData) {
-        ClientHandler senderHandler = clients.get(sender);
-        ClientHandler recipientHandler = clients.get(recipient);
-        
+    /** A private message relayed by another node; delivered or held here, never relayed on. */
+    static void receiveRelayedPrivate(String sender, String recipient, String message) {
+        ChatSession recipientHandler = sessions.get(recipient);
         if (recipientHandler != null) {
-            // Send image to recipient
-            recipientHandler.sendMessage("IMAGE_PRIVATE:" + sender + ":" + imageData);
+            logMessage(MessageLog.KIND_PRIVATE, sender, recipient, message);
+            recipientHandler.sendMessage("PRIVATE:" + sender + ":" + message);
+        } else {
+            holdForOffline(null, sender, recipient, message, false);
+        }
+    }
+    
+    public static void sendPrivateImage(String sender, String recipient, ImageData image) {
+        sendPrivateImage(sender, recipient, null, image);
+    }
+    
+    // hash is null for a fresh upload, which is stored first
+    static void sendPrivateImage(String sender, String recipient, String hash, ImageData image) {
+        ChatSession senderHandler = sessions.get(sender);
+        ChatSession recipientHandler = sessions.get(recipient);
+        boolean remote = recipientHandler == null && cluster != null && cluster.hasUser(recipient);
+        
+        if (recipientHandler != null || remote) {
+            if (hash == null) {
+                hash = media.put(image);
+            }
+            logMessage(MessageLog.KIND_PRIVATE_IMAGE, sender, recipient, hash);
+            // Send image to recipient, here or on the node they are connected to
+            if (remote) {
+                cluster.relayPrivateImage(sender, recipient, image);
+            } else {
+                deliverPrivateImage(recipientHandler, sender, hash, image);
+            }
             
             // Confirm to sender
-            if (senderHandler != null) {
-                senderHandler.sendMessage("IMAGE_PRIVATE_TO:" + recipient + ":" + imageData);
+            if (senderHandler != null && senderHandler.supports(MediaStore.CAP_MEDIA)) {
+                sendImageRef(senderHandler, hash, image, "E", recipient);
+            } else if (senderHandler != null) {
+                senderHandler.send(EncodedMessage.image("IMAGE_PRIVATE_TO:" + recipient + ":",
+                        (byte) (FrameCodec.FLAG_PRIVATE | FrameCodec.FLAG_ECHO), recipient, image));
             }
         } else {
-            // Recipient not found
+            holdForOffline(senderHandler, sender, recipient, hash != null ? hash : media.put(image), true);
+        }
+    }
+    
+    private static void deliverPrivateImage(ChatSession recipientHandler, String sender, String hash,
+            ImageData image) {
+        if (recipientHandler.supports(MediaStore.CAP_MEDIA)) {
+            sendImageRef(recipientHandler, hash, image, "P", sender);
+        } else {
+            recipientHandler.send(EncodedMessage.image("IMAGE_PRIVATE:" + sender + ":",
+                    FrameCodec.FLAG_PRIVATE, sender, image));
+        }
+    }
+    
+    /** A private image relayed by another node; delivered or held here, never relayed on. */
+    static void receiveRelayedImage(String sender, String recipient, ImageData image) {
+        String hash = media.put(image);
+        ChatSession recipientHandler = sessions.get(recipient);
+        if (recipientHandler != null) {
+            logMessage(MessageLog.KIND_PRIVATE_IMAGE, sender, recipient, hash);
+            deliverPrivateImage(recipientHandler, sender, hash, image);
+        } else {
+            holdForOffline(null, sender, recipient, hash, true);
+        }
+    }
+    
+    /** True if {@code name} is a user we may hold mail for while they are away. */
+    static boolean acceptsOfflineMail(String name) {
+        return offline.knows(name) || (history != null && history.hasUser(name));
+    }
+    
+    /**
+     * Keeps a private message (or image hash) for an offline recipient. The
+     * sender hears {@code QUEUED:<recipient>:<id>} now and
+     * {@code DELIVERED:<recipient>:<id>,...} once the recipient logs in.
+     */
+    private static void holdForOffline(ChatSession senderHandler, String sender, String recipient,
+            String body, boolean image) {
+        if (!acceptsOfflineMail(recipient)) {
             if (senderHandler != null) {
                 senderHandler.sendMessage("ERROR:User " + recipient + " is not online.");
             }
+            return;
+        }
+        long id = offline.offer(recipient, sender, body, image);
+        if (id < 0) {
+            if (senderHandler != null) {
+                senderHandler.sendMessage("ERROR:" + recipient + "'s offline mailbox is full.");
+            }
+            return;
+        }
+        logMessage(image ? MessageLog.KIND_PRIVATE_IMAGE : MessageLog.KIND_PRIVATE, sender, recipient, body);
+        if (senderHandler != null) {
+            senderHandler.sendMessage(senderHandler.supports(OfflineMailbox.CAP_OFFLINE)
+                    ? "QUEUED:" + recipient + ":" + id
+                    : "SYSTEM:" + recipient + " is offline; your message will be delivered when they log in.");
+        }
+        // They may have logged in after we looked, and missed the drain
+        ChatSession now = sessions.get(recipient);
+        if (now != null && now.isLoggedIn()) {
+            deliverOffline(now);
+        }
+    }
+    
+    /** Hands a user everything held for them; called when their login completes. */
+    static void deliverOffline(ChatSession session) {
+        List<OfflineMailbox.Mail> held = offline.drain(session.getUsername());
+        if (held.isEmpty()) {
+            return;
+        }
+        for (OfflineMailbox.Mail mail : held) {
+            if (mail.image && media.cached(mail.body) == null) {
+                // Some image has to come off disk: deliver them all from there, in order
+                media.read(() -> deliverHeld(session, held));
+                return;
+            }
+        }
+        deliverHeld(session, held);
+    }
+    
+    private static void deliverHeld(ChatSession session, List<OfflineMailbox.Mail> held) {
+        Map<String, List<Long>> bySender = new LinkedHashMap<>();
+        for (OfflineMailbox.Mail mail : held) {
+            if (!mail.image) {
+                session.sendMessage("PRIVATE:" + mail.sender + ":" + mail.body);
+            } else {
+                ImageData image = media.get(mail.body);
+                if (image == null) {
+                    continue;
+                }
+                if (session.supports(MediaStore.CAP_MEDIA)) {
+                    sendImageRef(session, mail.body, image, "P", mail.sender);
+                } else {
+                    session.send(EncodedMessage.image("IMAGE_PRIVATE:" + mail.sender + ":",
+                            FrameCodec.FLAG_PRIVATE, mail.sender, image));
+                }
+            }
+            bySender.computeIfAbsent(mail.sender, s -> new ArrayList<>()).add(mail.id);
+        }
+        System.out.println("[mailbox] delivered " + held.size() + " held message(s) to '"
+                + session.getUsername() + "'");
+        
+        for (Map.Entry<String, List<Long>> delivered : bySender.entrySet()) {
+            ChatSession sender = sessions.get(delivered.getKey());
+            if (sender == null) {
+                continue;
+            }
+            if (sender.supports(OfflineMailbox.CAP_OFFLINE)) {
+                StringBuilder ids = new StringBuilder();
+                for (long id : delivered.getValue()) {
+                    ids.append(ids.length() == 0 ? "" : ",").append(id);
+                }
+                sender.sendMessage("DELIVERED:" + session.getUsername() + ":" + ids);
+            } else {
+                sender.sendMessage("SYSTEM:" + delivered.getValue().size() + " held message(s) delivered to "
+                        + session.getUsername() + ".");
+            }
+        }
+    }
+    
+    public static void broadcastImage(ChatSession sender, ImageData image) {
+        broadcastImage(sender, media.put(image), image);
+    }
+    
+    private static void broadcastImage(ChatSession sender, String hash, ImageData image) {
+        deliverGroupImage(sender.getUsername(), sender, hash, image);
+        if (cluster != null) {
+            cluster.relayGroupImage(sender.getUsername(), image);
+        }
+    }
+    
+    /** Group image to this node's users except {@code skip}, which is null for relayed ones. */
+    static void deliverGroupImage(String from, ChatSession skip, String hash, ImageData image) {
+        logMessage(MessageLog.KIND_GROUP_IMAGE, from, "All", hash);
+        // Both forms are encoded lazily, only if some recipient needs them
+        EncodedMessage inline = EncodedMessage.image(from + ": IMAGE:", (byte) 0, from, image);
+        EncodedMessage ref = imageRef(hash, image, "G", from);
+        List<ChatSession> previews = null;
+        long start = System.nanoTime();
+        int sent = 0;
+        for (ChatSession client : sessions) {
+            if (client != skip && client.isLoggedIn() && client.isActive()) {
+                if (client.supports(MediaStore.CAP_MEDIA)) {
+                    media.recordRefSent(image.size());
+                    client.send(ref);
+                    if (client.supports(Thumbnails.CAP_THUMBS)) {
+                        if (previews == null) {
+                            previews = new ArrayList<>();
+                        }
+                        previews.add(client);
+                    }
+                } else {
+                    client.send(inline);
+                }
+                sent++;
+            }
+        }
+        Metrics.FANOUT.since(start);
+        Metrics.RECIPIENTS.record(sent);
+        if (previews != null) {
+            thumbnails.send(previews, hash, image);
+        }
+    }
+    
+    /**
+     * {@code IMG_REF:<hash>:<G|P>:<recipient>}: re-shares an image the server
+     * already stores without uploading it again. If it is gone the sender gets
+     * {@code MEDIA_MISSING:<hash>} and uploads it normally.
+     */
+    static void shareImageRef(ChatSession sender, String hash, boolean isPrivate, String recipient) {
+        media.fetch(hash, image -> {
+            if (image == null) {
+                sender.sendMessage("MEDIA_MISSING:" + hash);
+                return;
+            }
+            media.recordReuse(image.size());
+            if (isPrivate) {
+                sendPrivateImage(sender.getUsername(), recipient, hash, image);
+            } else {
+                broadcastImage(sender, hash, image);
+            }
+        });
+    }
+    
+    /** {@code MEDIA_GET:<hash>}: a client fetching an image it was sent by reference. */
+    static void sendMedia(ChatSession session, String hash) {
+        media.fetch(hash, image -> {
+            if (image == null) {
+                session.sendMessage("MEDIA_MISSING:" + hash);
+            } else {
+                media.recordFetch(image.size());
+                session.send(EncodedMessage.image("MEDIA:" + hash + ":", FrameCodec.FLAG_MEDIA, hash, image));
+            }
+        });
+    }
+    
+    /** {@code THUMB_GET:<hash>}: a client asking for the preview of an image it saw in history. */
+    static void sendThumbnail(ChatSession session, String hash) {
+        media.fetch(hash, image -> {
+            if (image == null) {
+                session.sendMessage("MEDIA_MISSING:" + hash);
+            } else {
+                thumbnails.send(session, hash, image);
+            }
+        });
+    }
+    
+    /**
+     * {@code IMAGE_REF:<hash>:<size>:<G|P|E>:<peer>}; E is the sender's own
+     * private echo. Counted as sent by reference once per recipient. Clients
+     * that take previews get one after it.
+     */
+    static void sendImageRef(ChatSession client, String hash, ImageData image, String kind, String peer) {
+        media.recordRefSent(image.size());
+        client.send(imageRef(hash, image, kind, peer));
+        if (client.supports(Thumbnails.CAP_THUMBS)) {
+            thumbnails.send(client, hash, image);
         }
     }
     
-    public static void broadcastMessage(String message, ClientHandler sender) {
-        for (ClientHandler client : clientHandlers) {
-            if (client != sender && client.isActive()) {
-                client.sendMessage(message);
+    private static EncodedMessage imageRef(String hash, ImageData image, String kind, String peer) {
+        return EncodedMessage.of("IMAGE_REF:" + hash + ":" + image.size() + ":" + kind + ":" + peer);
+    }
+    
+    public static void broadcastMessage(String message, ChatSession sender) {
+        deliverGroupMessage(sender.getUsername(), message, sender);
+        if (cluster != null) {
+            cluster.relayGroup(sender.getUsername(), message);
+        }
+    }
+    
+    /** Group line to this node's users except {@code skip}, which is null for relayed ones. */
+    static void deliverGroupMessage(String from, String message, ChatSession skip) {
+        logMessage(MessageLog.KIND_GROUP, from, "All", message);
+        // Encode once; every recipient queue shares the same bytes
+        EncodedMessage encoded = EncodedMessage.of(message);
+        long start = System.nanoTime();
+        int sent = 0;
+        for (ChatSession client : sessions) {
+            if (client != skip && client.isLoggedIn() && client.isActive()) {
+                client.send(encoded);
+                sent++;
             }
         }
+        Metrics.FANOUT.since(start);
+        Metrics.RECIPIENTS.record(sent);
     }
     
+    /** Sends a line to the room's members only; the sender must have joined it. */
+    static void sendRoomMessage(ChatSession sender, String room, String text) {
+        if (!rooms.isMember(room, sender)) {
+            sender.sendMessage("ERROR:Join #" + room + " before posting to it.");
+            return;
+        }
+        deliverRoomMessage(room, sender.getUsername(), text, sender);
+        if (cluster != null) {
+            cluster.relayRoom(room, sender.getUsername(), text);
+        }
+    }
+    
+    /** Room line to this node's members except {@code skip}, which is null for relayed ones. */
+    static void deliverRoomMessage(String room, String from, String text, ChatSession skip) {
+        // Same body as a group line, so history replays rooms and All alike
+        logMessage(MessageLog.KIND_GROUP, from, room, from + ": " + text);
+        rooms.publish(room, skip, EncodedMessage.of("ROOM:" + room + ":" + from + ":" + text));
+    }
+    
+    /**
+     * Full roster for clients that don't understand presence deltas. Clients
+     * that sent {@code HELLO:presence} get versioned deltas from
+     * {@link #publishPresence} instead.
+     */
     public static void broadcastUserList() {
         StringBuilder userList = new StringBuilder("USERS_LIST:");
-        for (String username : clients.keySet()) {
+        for (String username : onlineUsers()) {
             userList.append(username).append(",");
         }
         
@@ -86,167 +466,397 @@ public class AppServer {
             userList.deleteCharAt(userList.length() - 1); // Remove last comma
         }
         
-        for (ClientHandler client : clientHandlers) {
-            if (client.isActive()) {
-                client.sendMessage(userList.toString());
+        EncodedMessage encoded = EncodedMessage.of(userList.toString());
+        for (ChatSession client : sessions) {
+            if (client.isLoggedIn() && client.isActive() && !client.supports(ChatSession.CAP_PRESENCE)) {
+                client.send(encoded);
             }
         }
     }
     
-    public static void removeClient(ClientHandler client) {
-        if (client.getUsername() != null) {
-            clients.remove(client.getUsername());
-            clientHandlers.remove(client);
-            System.out.println("Client '" + client.getUsername() + "' disconnected");
+    /** Sends the joining user a snapshot; everyone else hears about them via {@link #presence}. */
+    static void userJoined(ChatSession session) {
+        if (session.supports(ChatSession.CAP_PRESENCE)) {
+            sendRosterSnapshot(session);
+        }
+        presence.joined(session);
+        if (cluster != null) {
+            cluster.userJoined(session.getUsername());
+        }
+        offline.remember(session.getUsername());
+        deliverOffline(session);
+    }
+    
+    static void userLeft(ChatSession session) {
+        presence.left(session);
+        if (cluster != null) {
+            cluster.userLeft(session.getUsername());
+        }
+    }
+    
+    /** A user logged in on another node; shown in rosters like a local one. */
+    static void remoteUserJoined(String name) {
+        presence.remoteJoined(name);
+    }
+    
+    static void remoteUserLeft(String name) {
+        if (!sessions.contains(name)) {
+            presence.remoteLeft(name);
+        }
+    }
+    
+    /** Everyone logged in, on this node or, when clustered, on any other. */
+    static Set<String> onlineUsers() {
+        Set<String> users = new LinkedHashSet<>(sessions.names());
+        if (cluster != null) {
+            users.addAll(cluster.users());
+        }
+        return users;
+    }
+    
+    /**
+     * Publishes one aggregation window: the net joins and leaves become a single
+     * SYSTEM line, one roster delta (or USERS_LIST for old clients) and one
+     * version bump. Returns the number of users whose presence actually changed.
+     */
+    static int publishPresence(Map<String, Boolean> window, Set<ChatSession> joiners) {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        synchronized (rosterLock) {
+            for (Map.Entry<String, Boolean> change : window.entrySet()) {
+                if (change.getValue()) {
+                    if (roster.add(change.getKey())) joined.add(change.getKey());
+                } else if (roster.remove(change.getKey())) {
+                    left.add(change.getKey());
+                }
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                return 0; // e.g. a quick reconnect: left and rejoined within the window
+            }
+            rosterVersion++;
             
-            // Notify others about user leaving
-            if (client.getUsername() != null) {
-                broadcastMessage("SYSTEM:" + client.getUsername() + " left the chat", null);
+            StringBuilder notice = new StringBuilder("SYSTEM:");
+            if (!joined.isEmpty()) {
+                notice.append(describeUsers(joined)).append(" joined the chat");
+            }
+            if (!left.isEmpty()) {
+                notice.append(joined.isEmpty() ? "" : "; ").append(describeUsers(left)).append(" left the chat");
+            }
+            EncodedMessage encoded = EncodedMessage.of(notice.toString());
+            for (ChatSession client : sessions) {
+                // Joiners already got their welcome line
+                if (client.isLoggedIn() && client.isActive() && !joiners.contains(client)) {
+                    client.send(encoded);
+                }
             }
             
-            broadcastUserList();
+            broadcastPresence(rosterDelta(joined, left));
+        }
+        broadcastUserList();
+        return joined.size() + left.size();
+    }
+    
+    /** USER_JOINED/USER_LEFT for a single change, USERS_DELTA:v:+a,-b for several. */
+    private static String rosterDelta(List<String> joined, List<String> left) {
+        if (joined.size() + left.size() == 1) {
+            return joined.isEmpty()
+                    ? "USER_LEFT:" + rosterVersion + ":" + left.get(0)
+                    : "USER_JOINED:" + rosterVersion + ":" + joined.get(0);
+        }
+        StringBuilder delta = new StringBuilder("USERS_DELTA:").append(rosterVersion).append(':');
+        for (String name : joined) {
+            delta.append('+').append(name).append(',');
+        }
+        for (String name : left) {
+            delta.append('-').append(name).append(',');
+        }
+        delta.setLength(delta.length() - 1);
+        return delta.toString();
+    }
+    
+    // "alice", "alice and bob", "alice, bob and carol", "alice, bob, carol and 4 others"
+    private static String describeUsers(List<String> names) {
+        int shown = names.size() > 4 ? 3 : names.size();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                text.append(i == shown - 1 && shown == names.size() ? " and " : ", ");
+            }
+            text.append(names.get(i));
+        }
+        if (shown < names.size()) {
+            text.append(" and ").append(names.size() - shown).append(" others");
         }
+        return text.toString();
     }
     
-    public static Map<String, ClientHandler> getClients() {
-        return new HashMap<>(clients);
+    /** {@code USERS_SNAPSHOT:<version>:a,b,c}, sent on login or after a version gap. */
+    static void sendRosterSnapshot(ChatSession session) {
+        synchronized (rosterLock) {
+            session.sendMessage("USERS_SNAPSHOT:" + rosterVersion + ":" + String.join(",", roster));
+        }
+    }
+    
+    // Called with rosterLock held so every client sees versions in order
+    private static void broadcastPresence(String delta) {
+        EncodedMessage encoded = EncodedMessage.of(delta);
+        for (ChatSession client : sessions) {
+            if (client.isLoggedIn() && client.isActive()
+                    && client.supports(ChatSession.CAP_PRESENCE)) {
+                client.send(encoded);
+            }
+        }
+    }
+    
+    public static void removeClient(ChatSession client) {
+        boolean loggedIn = sessions.remove(client);
+        client.stopHeartbeat();
+        client.abortTransfers();
+        client.leaveRooms();
+        if (loggedIn) {
+            System.out.println("Client '" + client.getUsername() + "' disconnected");
+            OutboundQueue outbound = client.getOutbound();
+            if (outbound.dropped() > 0) {
+                System.out.println("  outbound queue: dropped=" + outbound.dropped()
+                        + " peakDepth=" + outbound.peakDepth());
+            }
+            RateLimiter limiter = client.getLimiter();
+            if (limiter.throttled() > 0 || limiter.dropped() > 0) {
+                System.out.println("  rate limits: throttled=" + limiter.throttled()
+                        + " (" + limiter.throttledMillis() + " ms) dropped=" + limiter.dropped());
+            }
+            
+            // Others hear about it (batched with other joins/leaves) from the aggregator
+            userLeft(client);
+        }
     }
+    
 }
 
-class ClientHandler extends Thread {
+/**
+ * Blocking engine: one task per socket, reading lines (or frames, once
+ * negotiated) and feeding them to a {@link ChatSession}.
+ * Which kind of thread runs it is up to the executor it is submitted to.
+ * Outbound lines go through a bounded {@link OutboundQueue} drained by a
+ * separate writer task, so a slow reader never blocks the thread routing to it.
+ * Each drain copies what is queued into one buffer and writes it in as few
+ * socket writes as it can.
+ */
+class ClientHandler implements Runnable, ChatSession.Transport {
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private String username;
-    private volatile boolean active = true;
+    private InputStream in;
+    private OutputStream out;
+    private final ChatSession session = new ChatSession(this);
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final Executor writer;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private volatile boolean closing;
+    private boolean inflating; // reader thread only
+    private Compression.Compressor compressor; // writer only, set after HELLO_OK
+    private final EncodedMessage[] batch = new EncodedMessage[64]; // writer only
+    private byte[] pending; // writer only, allocated once a drain has more than one message
+    private int pendingLength;
+    
+    /** Delays drains by {@code -Dchat.outbound.flushDelayMs}; null when that is 0. */
+    private static final ScheduledExecutorService LINGER = OutboundQueue.FLUSH_DELAY_NANOS <= 0 ? null
+            : Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "flush-linger");
+                t.setDaemon(true);
+                return t;
+            });
     
-    public ClientHandler(Socket socket) {
+    public ClientHandler(Socket socket, Executor writer) {
         this.socket = socket;
+        this.writer = writer;
     }
     
     @Override
     public void run() {
+        ConnectionExecutors.activeHandlers.incrementAndGet();
+        Metrics.ACCEPTED.increment();
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            AppServer.addSession(session);
             
-            // First message should be username
-            String initialMessage = in.readLine();
-            if (initialMessage != null && initialMessage.startsWith("USERNAME:")) {
-                username = initialMessage.substring(9); // Remove "USERNAME:" prefix
-                
-                // Check if username is already taken
-                if (AppServer.getClients().containsKey(username)) {
-                    out.println("ERROR:Username already taken. Please choose another one.");
-                    closeResources();
-                    return;
-                }
-                
-                // Add client to the server's client list
-                AppServer.clients.put(username, this);
-                System.out.println("User '" + username + "' joined the chat");
-                
-                // Send welcome message
-                out.println("SYSTEM:Welcome to WhatsApp-style chat, " + username + "!");
-                
-                // Notify others about new user
-                AppServer.broadcastMessage("SYSTEM:" + username + " joined the chat", this);
-                
-                // Send updated user list to all clients
-                AppServer.broadcastUserList();
-            } else {
-                closeResources();
-                return;
-            }
-            
-            String message;
-            while (active && (message = in.readLine()) != null) {
-                if (message.equals("/quit")) {
-                    break;
-                }
-                
-                // Handle different types of messages
-                if (message.startsWith("/")) {
-                    // Command handling
-                    handleCommand(message);
-                } else if (message.startsWith("MSG_PRIVATE:")) {
-                    // Private message: MSG_PRIVATE:recipient:message
-                    String[] parts = message.split(":", 3);
-                    if (parts.length >= 3) {
-                        String recipient = parts[1];
-                        String privateMsg = parts[2];
-                        AppServer.sendPrivateMessage(username, recipient, privateMsg);
-                    }
-                } else if (message.startsWith("IMG_PRIVATE:")) {
-                    // Private image: IMG_PRIVATE:recipient:imageData
-                    String[] parts = message.split(":", 3);
-                    if (parts.length >= 3) {
-                        String recipient = parts[1];
-                        String imageData = parts[2];
-                        AppServer.sendPrivateImage(username, recipient, imageData);
+            // ChatSession expects the username (optionally after HELLO) first.
+            // Lines are read byte by byte so the stream can switch to frames after HELLO.
+            while (session.isActive()) {
+                if (session.isBinary()) {
+                    FrameCodec.Frame frame = FrameCodec.readFrame(in);
+                    if (frame == null || !session.onFrame(frame)) {
+                        break;
                     }
                 } else {
-                    // Regular chat message
-                    AppServer.broadcastMessage(username + ": " + message, this);
+                    String message = FrameCodec.readLine(in, EncodedMessage.CHARSET);
+                    if (message == null || !session.onLine(message)) {
+                        break;
+                    }
+                }
+                // Everything after the HELLO line is deflated, including bytes already buffered
+                if (!inflating && session.isCompressed()) {
+                    inflating = true;
+                    in = new BufferedInputStream(new Compression.InflatingStream(in));
                 }
             }
         } catch (IOException e) {
             System.err.println("Error handling client: " + e.getMessage());
         } finally {
-           AppServer.removeClient(this);
+            AppServer.removeClient(session);
+            close();
+            ConnectionExecutors.activeHandlers.decrementAndGet();
+        }
+    }
+    
+    @Override
+    public void send(EncodedMessage message) {
+        if (closing) {
+            return;
+        }
+        if (!outbound.offer(message)) {
+            System.out.println("Disconnecting slow consumer '" + session.getUsername() + "'");
+            closing = true;
             closeResources();
+            return;
         }
+        scheduleDrain();
     }
     
-    private void handleCommand(String command) {
-        if (command.equals("/users")) {
-            // Send user list to this client only
-            StringBuilder userList = new StringBuilder("USERLIST:");
-            for (String user : AppServer.getClients().keySet()) {
-                userList.append(user).append(", ");
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            if (LINGER != null && !closing) {
+                // Messages queued meanwhile join this drain's write
+                LINGER.schedule(() -> writer.execute(this::drain), OutboundQueue.FLUSH_DELAY_NANOS, TimeUnit.NANOSECONDS);
+            } else {
+                writer.execute(this::drain);
             }
-            if (userList.length() > "USERLIST:".length()) {
-                userList.delete(userList.length() - 2, userList.length()); // Remove last ", "
+        }
+    }
+    
+    private void drain() {
+        do {
+            int n;
+            try {
+                while ((n = outbound.pollBatch(batch)) > 0) {
+                    Metrics.MESSAGES_OUT.add(n);
+                    for (int i = 0; i < n; i++) {
+                        EncodedMessage message = batch[i];
+                        batch[i] = null;
+                        byte[] bytes = message.bytes(session.isBinary());
+                        if (compressor != null) {
+                            compressor.add(bytes);
+                            if (compressor.size() >= OutboundQueue.FLUSH_BYTES) {
+                                write(compressor.take(false));
+                            }
+                        } else if (n == 1 && pendingLength == 0) {
+                            write(ByteBuffer.wrap(bytes)); // Nothing to coalesce with, skip the copy
+                        } else {
+                            buffer(bytes);
+                        }
+                        if (compressor == null && message.isTextOnly() && session.isCompressed()) {
+                            writePending(); // Plain bytes up to HELLO_OK, deflated after it
+                            compressor = new Compression.Compressor();
+                        }
+                    }
+                }
+                writePending();
+                if (pending != null && pending.length > 8192) {
+                    pending = null; // Don't hold a large buffer between bursts
+                }
+                if (compressor != null) {
+                    write(compressor.take(true));
+                    compressor.trim();
+                }
+            } catch (IOException e) {
+                // Peer is gone; closing the socket also ends the reader loop
+                outbound.clear();
+                closing = true;
             }
-            sendMessage(userList.toString());
-        } else if (command.startsWith("/msg ")) {
-            // Private message: /msg username message
-            String[] parts = command.split(" ", 3);
-            if (parts.length >= 3) {
-                String targetUser = parts[1];
-                String privateMsg = parts[2];
-                
-                AppServer.sendPrivateMessage(username, targetUser, privateMsg);
+            if (closing) {
+                closeResources();
+                return;
             }
-        } else if (command.equals("/help")) {
-            sendMessage("COMMANDS: /users (show online users), /msg username message (private message), /help (show this)");
-        } else {
-            sendMessage("ERROR:Unknown command. Type /help for available commands.");
+            drainScheduled.set(false);
+        } while ((closing || !outbound.isEmpty()) && drainScheduled.compareAndSet(false, true));
+    }
+    
+    /** Appends to the pending write, writing out first when it would pass {@code flushBytes}. */
+    private void buffer(byte[] bytes) throws IOException {
+        if (pendingLength + bytes.length > OutboundQueue.FLUSH_BYTES) {
+            writePending();
+            if (bytes.length >= OutboundQueue.FLUSH_BYTES) {
+                write(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        if (pending == null || pendingLength + bytes.length > pending.length) {
+            int size = Math.max(8192, Integer.highestOneBit(pendingLength + bytes.length - 1) << 1);
+            pending = Arrays.copyOf(pending == null ? new byte[0] : pending, Math.min(size, OutboundQueue.FLUSH_BYTES));
         }
+        System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+        pendingLength += bytes.length;
     }
     
-    public void sendMessage(String message) {
-        if (out != null && active) {
-            out.println(message);
+    private void writePending() throws IOException {
+        if (pendingLength > 0) {
+            write(ByteBuffer.wrap(pending, 0, pendingLength));
+            pendingLength = 0;
         }
     }
     
-    public String getUsername() {
-        return username;
+    private void write(ByteBuffer block) throws IOException {
+        if (!block.hasRemaining()) {
+            return;
+        }
+        long start = System.nanoTime();
+        out.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+        Metrics.WRITE.since(start);
+        Metrics.BYTES_OUT.add(block.remaining());
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return !closing && !socket.isClosed();
+    }
+    
+    /** Closes once everything already queued (e.g. a final ERROR line) is written. */
+    @Override
+    public void close() {
+        closing = true;
+        scheduleDrain();
+    }
+    
+    /** Closing the socket also wakes a writer stuck on a dead peer and ends the reader loop. */
+    @Override
+    public void abort() {
+        closing = true;
+        outbound.clear();
+        closeResources();
+    }
+    
+    @Override
+    public OutboundQueue outbound() {
+        return outbound;
     }
     
-    public boolean isActive() {
-        return active && !socket.isClosed();
+    /** Sleeps the reader; the unread input waits in the socket, which backs the sender off. */
+    @Override
+    public void pauseReading(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
     
     private void closeResources() {
-        active = false;
         try {
+            // Socket first: closing the stream would wait on a thread blocked in read()
+            if (socket != null) socket.close();
             if (in != null) in.close();
             if (out != null) out.close();
-            if (socket != null) socket.close();
         } catch (IOException e) {
             System.err.println("Error closing client resources: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conversation index over the {@link MessageLog}. For every conversation (the
+ * group, a room, or one pair of users) it keeps the ascending sequence numbers of its
+ * messages, so a page of history is a binary search plus one log read per
+ * message returned, however long the history is. The index is rebuilt from the
+ * log at startup and trimmed whenever the log's retention drops a segment,
+ * so it never holds more than the log does.
+ *
+ * <p>Protocol: {@code HISTORY:<conversation>:<beforeSeq>:<limit>}, where the
+ * conversation is {@code All}, {@code #room} or a peer's name and {@code beforeSeq} 0 means
+ * "latest". The reply is one
+ * {@code HISTORY_ITEM:<conversation>:<seq>:<time>:<kind>:<from>:<body>} per
+ * message, oldest first, then {@code HISTORY_END:<conversation>:<cursor>}; the
+ * cursor is the {@code beforeSeq} for the next older page, 0 when there is none.
+ */
+final class ChatHistory {
+    static final String CAP_HISTORY = "history";
+    static final int MAX_PAGE = 200;
+
+    private final MessageLog log;
+    private final Map<String, SeqList> conversations = new ConcurrentHashMap<>();
+    // Each sender's latest message, so users can be forgotten with their last one
+    private final Map<String, Long> users = new ConcurrentHashMap<>();
+
+    ChatHistory(MessageLog log) {
+        this.log = log;
+        log.scan(entry -> index(entry.kind, entry.from, entry.to, entry.seq));
+        log.onRetention(this::trimBelow);
+    }
+
+    /** Appends a delivered message to the log and the index. */
+    void record(byte kind, String from, String to, String body) {
+        // One lock for both, so each conversation's list stays in sequence order
+        synchronized (this) {
+            long seq = log.append(kind, from, to, body);
+            if (seq > 0) {
+                index(kind, from, to, seq);
+            }
+        }
+    }
+
+    /** Sends one page of {@code user}'s view of a conversation. */
+    void sendPage(ChatSession session, String conversation, long beforeSeq, int limit) {
+        String user = session.getUsername();
+        String key;
+        if (conversation.equals("All")) {
+            key = groupKey(conversation);
+        } else if (conversation.startsWith("#")) {
+            // Room history is for members only
+            key = AppServer.rooms.isMember(conversation.substring(1), session) ? groupKey(conversation.substring(1)) : null;
+        } else {
+            key = pairKey(user, conversation);
+        }
+        SeqList list = key == null ? null : conversations.get(key);
+        long[] page = new long[0];
+        if (list != null) {
+            page = list.before(beforeSeq <= 0 ? Long.MAX_VALUE : beforeSeq,
+                    Math.max(1, Math.min(limit, MAX_PAGE)));
+        }
+
+        List<MessageLog.Entry> entries = new ArrayList<>(page.length);
+        for (long seq : page) {
+            MessageLog.Entry entry = log.read(seq);
+            if (entry != null) { // null if retention removed it just now
+                entries.add(entry);
+            }
+        }
+        long cursor = entries.size() == page.length && page.length > 0 && list.hasBefore(page[0]) ? page[0] : 0;
+        for (MessageLog.Entry entry : entries) {
+            session.sendMessage("HISTORY_ITEM:" + conversation + ":" + entry.seq + ":" + entry.time + ":"
+                    + kindCode(entry.kind) + ":" + entry.from + ":" + entry.body);
+        }
+        session.sendMessage("HISTORY_END:" + conversation + ":" + cursor);
+    }
+
+    private void index(byte kind, String from, String to, long seq) {
+        boolean group = kind == MessageLog.KIND_GROUP || kind == MessageLog.KIND_GROUP_IMAGE;
+        String key = group ? groupKey(to) : pairKey(from, to);
+        users.put(from, seq);
+        conversations.computeIfAbsent(key, k -> new SeqList()).add(seq);
+    }
+
+    /** Forgets every message below {@code first}, which the log no longer retains. */
+    private synchronized void trimBelow(long first) {
+        Iterator<SeqList> lists = conversations.values().iterator();
+        while (lists.hasNext()) {
+            if (lists.next().trimBelow(first) == 0) {
+                lists.remove();
+            }
+        }
+        users.values().removeIf(latest -> latest < first);
+    }
+
+    long appends() {
+        return log.appends();
+    }
+
+    long forces() {
+        return log.forces();
+    }
+
+    /** True if this name ever sent a message that is still in the log. */
+    boolean hasUser(String name) {
+        return users.containsKey(name);
+    }
+
+    private static String groupKey(String name) {
+        return "#" + name;
+    }
+
+    // Same key from either side of the conversation
+    private static String pairKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + "\u0000" + b : b + "\u0000" + a;
+    }
+
+    /** G/P for text, GI/PI for images whose body is a {@link MediaStore} hash. */
+    private static String kindCode(byte kind) {
+        switch (kind) {
+            case MessageLog.KIND_PRIVATE:
+                return "P";
+            case MessageLog.KIND_GROUP_IMAGE:
+                return "GI";
+            case MessageLog.KIND_PRIVATE_IMAGE:
+                return "PI";
+            default:
+                return "G";
+        }
+    }
+
+    /** Growable ascending array of sequence numbers. */
+    private static final class SeqList {
+        private long[] seqs = new long[16];
+        private int size;
+
+        synchronized void add(long seq) {
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            seqs[size++] = seq;
+        }
+
+        /** Up to {@code limit} sequence numbers below {@code before}, ascending. */
+        synchronized long[] before(long before, int limit) {
+            int end = Arrays.binarySearch(seqs, 0, size, before);
+            if (end < 0) {
+                end = -end - 1;
+            }
+            int start = Math.max(0, end - limit);
+            return Arrays.copyOfRange(seqs, start, end);
+        }
+
+        synchronized boolean hasBefore(long seq) {
+            return size > 0 && seqs[0] < seq;
+        }
+
+        /** Forgets messages the log no longer retains; returns how many are left. */
+        synchronized int trimBelow(long first) {
+            int from = 0;
+            while (from < size && seqs[from] < first) {
+                from++;
+            }
+            if (from > 0) {
+                System.arraycopy(seqs, from, seqs, 0, size - from);
+                size -= from;
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,694 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Protocol state for one connected user, independent of how its socket is
+ * driven. The blocking {@link ClientHandler} and the {@link NioChatServer}
+ * event loops both feed inbound lines here and supply a {@link Transport}
+ * for outbound ones.
+ */
+class ChatSession {
+
+    /** Outbound side of a connection, implemented by each server engine. */
+    interface Transport {
+        void send(EncodedMessage message);
+
+        boolean isOpen();
+
+        void close();
+
+        /** Drops the connection at once, discarding anything still queued. */
+        void abort();
+
+        OutboundQueue outbound();
+
+        /**
+         * Stops reading from this connection for about {@code nanos} once the
+         * current message is handled; the rate limiter's throttle. Called on
+         * the connection's reader only.
+         */
+        void pauseReading(long nanos);
+    }
+
+    /** Client understands USER_JOINED/USER_LEFT roster deltas. */
+    static final String CAP_PRESENCE = "presence";
+
+    /** Capabilities this server will accept in a HELLO line. */
+    private static final Set<String> SUPPORTED_CAPS = supportedCaps();
+
+    private static Set<String> supportedCaps() {
+        Set<String> caps = new HashSet<>(Arrays.asList(CAP_PRESENCE, FrameCodec.CAP_BINARY,
+                ImageTransfers.CAP_CHUNKED, MediaStore.CAP_MEDIA, Thumbnails.CAP_THUMBS, OfflineMailbox.CAP_OFFLINE, MessageAcks.CAP_ACKS));
+        if (AppServer.history != null) {
+            caps.add(ChatHistory.CAP_HISTORY);
+        }
+        if (Compression.ENABLED) {
+            caps.add(Compression.CAP_DEFLATE);
+        }
+        if (Heartbeat.ENABLED) {
+            caps.add(Heartbeat.CAP_HEARTBEAT);
+        }
+        return caps;
+    }
+
+    private final Transport transport;
+    private final Set<String> capabilities = ConcurrentHashMap.newKeySet();
+    private final ImageTransfers transfers = new ImageTransfers(this);
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    private final RateLimiter limiter = new RateLimiter();
+    private final Heartbeat heartbeat = new Heartbeat(this);
+    private final LineDispatcher.Fields fields = new LineDispatcher.Fields();
+    private int id = -1; // set by SessionRegistry
+    private String username;
+    private boolean helloSeen;
+    private volatile boolean binary;
+    private volatile boolean compressed;
+    private volatile boolean loggedIn;
+    private volatile boolean active = true;
+
+    ChatSession(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Entry point for every inbound line. Before login a connection may send
+     * one {@code HELLO:cap1,cap2} line listing optional protocol features,
+     * answered with {@code HELLO_OK:} and the accepted subset, followed by
+     * {@code USERNAME:<name>}; older clients send only the latter.
+     * Returns false if the connection should be closed.
+     */
+    boolean onLine(String line) {
+        long start = System.nanoTime();
+        if (loggedIn) {
+            heartbeat.heard(start);
+            long pause = line.equals("/quit") ? 0 : admit(line, start);
+            if (pause < 0) {
+                return active;
+            }
+            if (line.startsWith("PONG:")) {
+                // Answer to our PING; hearing it was the point
+                if (pause > 0) {
+                    transport.pauseReading(pause);
+                }
+                return true;
+            }
+            boolean keep = onMessage(line);
+            Metrics.MESSAGES_IN.increment();
+            Metrics.ROUTE.since(start);
+            if (pause > 0 && keep) {
+                transport.pauseReading(pause);
+            }
+            return keep;
+        }
+        if (line.startsWith("PONG:")) {
+            return true; // Not a sign of life before login: the login deadline stands
+        }
+        if (!helloSeen && line.startsWith("HELLO:")) {
+            helloSeen = true;
+            for (String cap : line.substring(6).split(",")) {
+                if (SUPPORTED_CAPS.contains(cap.trim())) {
+                    capabilities.add(cap.trim());
+                }
+            }
+            // Set first: the writer checks it as soon as HELLO_OK is queued
+            compressed = capabilities.contains(Compression.CAP_DEFLATE);
+            // Always a text line: it marks the point where binary framing starts
+            transport.send(EncodedMessage.textLine("HELLO_OK:" + String.join(",", capabilities)));
+            binary = capabilities.contains(FrameCodec.CAP_BINARY);
+            return true;
+        }
+        return onHandshake(line);
+    }
+
+    /** Entry point for every inbound frame once binary framing is negotiated. */
+    boolean onFrame(FrameCodec.Frame frame) {
+        if (frame.type == FrameCodec.TYPE_LINE) {
+            return onLine(frame.text());
+        }
+        long start = System.nanoTime();
+        long pause = 0;
+        if (loggedIn) {
+            heartbeat.heard(start);
+            boolean prepaid = frame.type == FrameCodec.TYPE_CHUNK && transfers.open(frame.transferId());
+            pause = admit(true, frame.type == FrameCodec.TYPE_IMAGE, prepaid ? 0 : frame.payload.length, start);
+            if (pause < 0) {
+                return active;
+            }
+        }
+        if (frame.type == FrameCodec.TYPE_CHUNK && loggedIn) {
+            transfers.chunk(frame.transferId(), ImageData.ofBytes(frame.chunk()));
+        } else if (frame.type == FrameCodec.TYPE_IMAGE && loggedIn) {
+            if (frame.payload.length > ImageTransfers.MAX_IMAGE_BYTES) {
+                rejectImage();
+                return true;
+            }
+            ImageData image = ImageData.ofBytes(frame.image());
+            if (frame.hasFlag(FrameCodec.FLAG_PRIVATE)) {
+                AppServer.sendPrivateImage(username, frame.peer(), image);
+            } else {
+                AppServer.broadcastImage(this, image);
+            }
+        }
+        Metrics.MESSAGES_IN.increment();
+        Metrics.ROUTE.since(start);
+        if (pause > 0) {
+            transport.pauseReading(pause);
+        }
+        return true;
+    }
+
+    // ─── Flood protection ────────────────────────────────────────────────────
+
+    /**
+     * Charges a text line to the image budget if it carries image data, by
+     * the size of the image rather than of its base64, so a base64 upload
+     * costs the same as a binary one and one at the size limit fits the burst.
+     * A chunked upload pays its declared size up front, at {@code IMG_BEGIN}.
+     */
+    private long admit(String line, long now) {
+        if (line.startsWith("IMG_CHUNK:")) {
+            return admit(true, false, transfers.open(chunkId(line)) ? 0 : decodedSize(line), now);
+        }
+        if (line.startsWith("IMAGE:") || line.startsWith("IMG_PRIVATE:")) {
+            return admit(true, true, decodedSize(line), now);
+        }
+        if (line.startsWith("IMG_BEGIN:")) {
+            return admit(true, true, (int) Math.max(line.length(), declaredSize(line)), now);
+        }
+        return admit(line.startsWith("IMG_REF:"), true, line.length(), now);
+    }
+
+    // IMG_CHUNK:<id>:...; -1 if the id is not a number
+    private static long chunkId(String line) {
+        int end = line.indexOf(':', 10);
+        try {
+            return Long.parseLong(line.substring(10, end < 0 ? line.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // IMG_BEGIN:<id>:<totalBytes>:...; 0 if malformed, and never more than an upload may be
+    private static long declaredSize(String line) {
+        String[] parts = line.split(":", 4);
+        try {
+            long total = parts.length < 3 ? 0 : Long.parseLong(parts[2]);
+            return total > 0 && total <= ImageTransfers.MAX_IMAGE_BYTES ? total : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Base64 carries 3 bytes in 4 chars; the short prefix is counted the same way
+    private static int decodedSize(String line) {
+        return (int) ((long) line.length() * 3 / 4);
+    }
+
+    /**
+     * Applies this connection's {@link RateLimiter}: returns how long to stop
+     * reading after handling the message, or -1 if it must be skipped (in
+     * which case the connection may also have been closed for flooding).
+     */
+    private long admit(boolean image, boolean whole, int bytes, long now) {
+        long pause = limiter.admit(image, whole, bytes, now);
+        if (pause == 0) {
+            return 0;
+        }
+        int level = limiter.escalate(pause < 0 ? RateLimiter.MAX_DELAY_NANOS : pause, now);
+        if (level == RateLimiter.DISCONNECT) {
+            Metrics.FLOOD_DISCONNECTS.increment();
+            System.out.println("Disconnecting '" + username + "' for flooding");
+            sendMessage("ERROR:Disconnected for sending too fast.");
+            close();
+            return -1;
+        }
+        if (level == RateLimiter.WARN) {
+            sendMessage("ERROR:You are sending too fast; slow down or you will be disconnected.");
+        }
+        if (pause < 0) {
+            Metrics.RATE_DROPPED.increment();
+            if (limiter.dropNoticeDue(now)) {
+                sendMessage("ERROR:Sending too fast; message dropped.");
+            }
+            return -1;
+        }
+        Metrics.RATE_THROTTLED.increment();
+        return pause;
+    }
+
+    /** Throttle and drop counts for this connection's rate limits. */
+    RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Handles the login line, which must be {@code USERNAME:<name>}, or
+     * {@code RESUME:<token>:<name>} from a client reconnecting with
+     * {@link MessageAcks}. Returns false if the connection should be closed.
+     */
+    private boolean onHandshake(String initialMessage) {
+        boolean resume = initialMessage != null && initialMessage.startsWith("RESUME:")
+                && supports(MessageAcks.CAP_ACKS);
+        if (initialMessage == null || !(resume || initialMessage.startsWith("USERNAME:"))) {
+            close();
+            return false;
+        }
+        int colon = resume ? initialMessage.indexOf(':', 7) : 8;
+        if (colon < 0) {
+            close();
+            return false;
+        }
+        username = initialMessage.substring(colon + 1); // After "USERNAME:" or "RESUME:<token>:"
+        if (!isValidName(username)) {
+            transport.send(EncodedMessage.of("ERROR:Invalid username. It must not be empty or contain ':' or ','."));
+            close();
+            return false;
+        }
+        if (resume) {
+            // Our previous connection may still hold the name; it is dead, since we are back
+            ChatSession stale = AppServer.sessions.get(username);
+            if (stale != null && AppServer.acks.resumes(username, initialMessage.substring(7, colon))) {
+                stale.supersede();
+            }
+        }
+
+        // Check if username is already taken, here or on another node; a login
+        // on another node at the same moment is settled by ClusterNode
+        if ((AppServer.cluster != null && AppServer.cluster.hasUser(username))
+                || !AppServer.sessions.claim(username, this)) {
+            transport.send(EncodedMessage.of("ERROR:Username already taken. Please choose another one."));
+            close();
+            return false;
+        }
+        loggedIn = true;
+        Metrics.LOGINS.increment();
+        System.out.println("User '" + username + "' joined the chat");
+
+        // Send welcome message
+        sendMessage("SYSTEM:Welcome to WhatsApp-style chat, " + username + "!");
+        if (supports(MessageAcks.CAP_ACKS)) {
+            sendMessage("RESUME:" + AppServer.acks.issueToken(username));
+        }
+
+        // Roster snapshot for us; others get a (batched) join notice and roster update
+        AppServer.userJoined(this);
+        return true;
+    }
+
+    /** Names end up in ':' and ',' separated lines (rosters, RESUME, IMAGE_REF, cluster links). */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && name.indexOf(':') < 0 && name.indexOf(',') < 0;
+    }
+
+    /** Handles one line after the handshake. Returns false when the client quits. */
+    private boolean onMessage(String message) {
+        if (message.equals("/quit")) {
+            return false;
+        }
+        if (message.startsWith("/")) {
+            if (!COMMANDS.dispatch(this, message, fields)) {
+                sendMessage("ERROR:Unknown command. Type /help for available commands.");
+            }
+        } else if (!PROTOCOL.dispatch(this, message, fields)) {
+            // Regular chat message
+            AppServer.broadcastMessage(username + ": " + message, this);
+        }
+        return true;
+    }
+
+    // ─── Protocol lines ──────────────────────────────────────────────────────
+
+    /** Protocol lines by keyword; any other line from a logged-in user is a group message. */
+    private static final LineDispatcher<ChatSession> PROTOCOL = protocol();
+
+    private static LineDispatcher<ChatSession> protocol() {
+        LineDispatcher<ChatSession> table = new LineDispatcher<ChatSession>(':')
+                .on("MSG_PRIVATE", 2, ChatSession::onPrivateMessage)
+                .on("ROOM_MSG", 2, ChatSession::onRoomMessage)
+                .on("MSG_ID", 2, ChatSession::onAckedMessage)
+                .on("IMG_REF", 3, ChatSession::onImageRef)
+                .on("MEDIA_GET", 1, ChatSession::onMediaGet)
+                .on("THUMB_GET", 1, ChatSession::onThumbGet)
+                // Chunked image: IMG_BEGIN, then IMG_CHUNK pieces, then IMG_END
+                .on("IMG_BEGIN", 4, ChatSession::onImageBegin)
+                .on("IMG_CHUNK", 2, ChatSession::onImageChunk)
+                .on("IMG_END", 1, ChatSession::onImageEnd)
+                .on("IMG_PRIVATE", 2, ChatSession::onPrivateImage)
+                .on("IMAGE", 1, ChatSession::onGroupImage);
+        if (AppServer.history != null) {
+            table.on("HISTORY", 3, ChatSession::onHistory);
+        }
+        return table;
+    }
+
+    /** What a {@code MSG_ID} may carry; any other line is group text. */
+    private static final LineDispatcher<ChatSession> ACKED = new LineDispatcher<ChatSession>(':')
+            .on("MSG_PRIVATE", 2, ChatSession::onPrivateMessage)
+            .on("ROOM_MSG", 2, ChatSession::onRoomMessage);
+
+    // Acknowledged chat message: MSG_ID:id:line. A resent id is acked again, not delivered again.
+    private void onAckedMessage(LineDispatcher.Fields f) {
+        long id = f.number(0);
+        if (f.count() != 2 || id < 0) {
+            malformed(f);
+            return;
+        }
+        String message = f.get(1);
+        long seq = AppServer.acks.accept(username, id);
+        if (seq > 0) {
+            if (!ACKED.dispatch(this, message, fields)) {
+                AppServer.broadcastMessage(username + ": " + message, this);
+            }
+        } else {
+            Metrics.RESENDS.increment();
+            seq = -seq;
+        }
+        sendMessage("ACK:" + id + ":" + seq);
+    }
+
+    // MSG_PRIVATE:recipient:message
+    private void onPrivateMessage(LineDispatcher.Fields f) {
+        if (f.count() == 2) {
+            AppServer.sendPrivateMessage(username, f.get(0), f.get(1));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // ROOM_MSG:room:message
+    private void onRoomMessage(LineDispatcher.Fields f) {
+        if (f.count() == 2) {
+            AppServer.sendRoomMessage(this, f.get(0), f.get(1));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // Paged history: HISTORY:conversation:beforeSeq:limit
+    private void onHistory(LineDispatcher.Fields f) {
+        if (f.count() == 3) {
+            long before = f.number(1);
+            long limit = f.number(2);
+            if (before >= 0 && limit >= 0 && limit <= Integer.MAX_VALUE) {
+                AppServer.history.sendPage(this, f.get(0), before, (int) limit);
+                return;
+            }
+        }
+        malformed(f);
+    }
+
+    // Re-shared image by content hash: IMG_REF:hash:G|P:recipient
+    private void onImageRef(LineDispatcher.Fields f) {
+        if (f.count() == 3) {
+            AppServer.shareImageRef(this, f.get(0), f.is(1, "P"), f.get(2));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // MEDIA_GET:hash
+    private void onMediaGet(LineDispatcher.Fields f) {
+        if (f.count() == 1) {
+            AppServer.sendMedia(this, f.get(0));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // THUMB_GET:hash
+    private void onThumbGet(LineDispatcher.Fields f) {
+        if (f.count() == 1) {
+            AppServer.sendThumbnail(this, f.get(0));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // IMG_BEGIN:id:totalBytes:G|P:recipient
+    private void onImageBegin(LineDispatcher.Fields f) {
+        if (f.count() == 4 && f.number(0) >= 0 && f.number(1) >= 0) {
+            transfers.begin(f.number(0), f.number(1), f.is(2, "P"), f.get(3));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // IMG_CHUNK:id:base64
+    private void onImageChunk(LineDispatcher.Fields f) {
+        if (f.count() == 2 && f.number(0) >= 0) {
+            ImageData data = ImageData.decode(f.get(1));
+            if (data != null) {
+                transfers.chunk(f.number(0), data);
+            } else {
+                transfers.fail(f.number(0), "Invalid image data");
+            }
+        } else {
+            malformed(f);
+        }
+    }
+
+    // IMG_END:id
+    private void onImageEnd(LineDispatcher.Fields f) {
+        if (f.count() == 1 && f.number(0) >= 0) {
+            transfers.end(f.number(0));
+        } else {
+            malformed(f);
+        }
+    }
+
+    // Private image: IMG_PRIVATE:recipient:imageData
+    private void onPrivateImage(LineDispatcher.Fields f) {
+        if (f.count() != 2) {
+            malformed(f);
+            return;
+        }
+        ImageData image = image(f, 1);
+        if (image != null) {
+            AppServer.sendPrivateImage(username, f.get(0), image);
+        }
+    }
+
+    // Broadcast image: IMAGE:imageData
+    private void onGroupImage(LineDispatcher.Fields f) {
+        if (f.count() != 1) {
+            malformed(f);
+            return;
+        }
+        ImageData image = image(f, 0);
+        if (image != null) {
+            AppServer.broadcastImage(this, image);
+        }
+    }
+
+    /** Field {@code i} as an image within the size limit, or null after telling the client why not. */
+    private ImageData image(LineDispatcher.Fields f, int i) {
+        // Too long to be within the limit whatever its padding, so not worth decoding
+        if (f.length(i) > MAX_IMAGE_BASE64) {
+            rejectImage();
+            return null;
+        }
+        ImageData image = ImageData.decode(f.get(i));
+        if (image == null) {
+            sendMessage("ERROR:Invalid image data.");
+        } else if (image.size() > ImageTransfers.MAX_IMAGE_BYTES) {
+            rejectImage();
+            return null;
+        }
+        return image;
+    }
+
+    private void malformed(LineDispatcher.Fields f) {
+        sendMessage("ERROR:Malformed " + f.keyword() + " line.");
+    }
+
+    // ─── Slash commands ──────────────────────────────────────────────────────
+
+    private static final LineDispatcher<ChatSession> COMMANDS = new LineDispatcher<ChatSession>(' ')
+            .on("/users", 0, ChatSession::onUsers)
+            .on("/msg", 2, ChatSession::onMsg)
+            // Client saw a version gap in the roster deltas and wants a fresh snapshot
+            .on("/roster", 0, (session, f) -> AppServer.sendRosterSnapshot(session))
+            .on("/join", 1, ChatSession::onJoin)
+            .on("/leave", 1, ChatSession::onLeave)
+            .on("/rooms", 0, (session, f) -> session.sendMessage("ROOMS:" + AppServer.rooms.describe()))
+            .on("/stats", 1, ChatSession::onStats)
+            .on("/help", 0, (session, f) -> session.sendMessage(
+                    "COMMANDS: /users (show online users), /msg username message (private message),"
+                    + " /join room, /leave room, /rooms (list rooms), /help (show this)"));
+
+    private void onUsers(LineDispatcher.Fields f) {
+        // Send user list to this client only
+        StringBuilder userList = new StringBuilder("USERLIST:");
+        for (String user : AppServer.onlineUsers()) {
+            userList.append(user).append(", ");
+        }
+        if (userList.length() > "USERLIST:".length()) {
+            userList.delete(userList.length() - 2, userList.length()); // Remove last ", "
+        }
+        sendMessage(userList.toString());
+    }
+
+    // Private message: /msg username message
+    private void onMsg(LineDispatcher.Fields f) {
+        if (f.count() == 2) {
+            AppServer.sendPrivateMessage(username, f.get(0), f.get(1));
+        }
+    }
+
+    private void onJoin(LineDispatcher.Fields f) {
+        String room = f.count() == 1 ? f.get(0).trim() : "";
+        if (AppServer.rooms.join(room, this)) {
+            joinedRooms.add(room);
+            sendMessage("ROOM_JOINED:" + room);
+        } else {
+            sendMessage("ERROR:Room names are 1-32 letters, digits, '-' or '_'.");
+        }
+    }
+
+    private void onLeave(LineDispatcher.Fields f) {
+        String room = f.count() == 1 ? f.get(0).trim() : "";
+        if (AppServer.rooms.leave(room, this)) {
+            joinedRooms.remove(room);
+            sendMessage("ROOM_LEFT:" + room);
+        } else {
+            sendMessage("ERROR:You are not in #" + room + ".");
+        }
+    }
+
+    private void onStats(LineDispatcher.Fields f) {
+        if (!AppServer.isAdmin(username)) {
+            sendMessage("ERROR:/stats is for admins only.");
+            return;
+        }
+        if (f.is(0, "gc")) {
+            System.gc();
+        }
+        for (String line : Metrics.snapshot()) {
+            sendMessage("SYSTEM:[stats] " + line);
+        }
+    }
+
+    /** Base64 length of an image of exactly {@link ImageTransfers#MAX_IMAGE_BYTES}. */
+    private static final int MAX_IMAGE_BASE64 = (ImageTransfers.MAX_IMAGE_BYTES + 2) / 3 * 4;
+
+    private void rejectImage() {
+        sendMessage("ERROR:Image too large (limit " + (ImageTransfers.MAX_IMAGE_BYTES / (1024 * 1024)) + " MB)");
+    }
+
+    /** Abandons this user's unfinished chunked uploads; called once on disconnect. */
+    void abortTransfers() {
+        transfers.abortAll();
+    }
+
+    /** Leaves every room this user joined; called once on disconnect. */
+    void leaveRooms() {
+        for (String room : joinedRooms) {
+            AppServer.rooms.leave(room, this);
+        }
+        joinedRooms.clear();
+    }
+
+    public void sendMessage(String message) {
+        if (active) {
+            transport.send(EncodedMessage.of(message));
+        }
+    }
+
+    /** Sends a line that was already encoded once for many recipients. */
+    public void send(EncodedMessage message) {
+        if (active) {
+            transport.send(message);
+        }
+    }
+
+    /** True once this connection has switched to {@link FrameCodec} frames. */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * True once {@link Compression} is negotiated: inbound bytes after the
+     * HELLO line and outbound bytes after HELLO_OK are deflated.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    boolean supports(String capability) {
+        return capabilities.contains(capability);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /** This connection's slot in {@link SessionRegistry}, or -1 before it is registered. */
+    int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /** Queue depth and drop counters for this user's connection. */
+    OutboundQueue getOutbound() {
+        return transport.outbound();
+    }
+
+    public boolean isActive() {
+        return active && transport.isOpen();
+    }
+
+    void close() {
+        active = false;
+        transport.close();
+    }
+
+    // ─── Heartbeat ───────────────────────────────────────────────────────────
+
+    /** Starts idle tracking once the connection is registered. */
+    void startHeartbeat() {
+        heartbeat.start();
+    }
+
+    void stopHeartbeat() {
+        heartbeat.stop();
+    }
+
+    /**
+     * Drops this connection for a new one that resumed the same login, and
+     * releases the name now rather than when the dead socket is noticed.
+     */
+    void supersede() {
+        Metrics.RESUMED.increment();
+        System.out.println("'" + username + "' reconnected; dropping their previous connection");
+        active = false;
+        transport.abort();
+        AppServer.removeClient(this);
+    }
+
+    /** Gives up the name to a login on another node that claimed it at the same moment. */
+    void loseName(String nodeId) {
+        System.out.println("'" + username + "' also logged in on node " + nodeId + "; dropping the login here");
+        sendMessage("ERROR:Username already taken. Please choose another one.");
+        active = false;
+        transport.close();
+        AppServer.removeClient(this);
+    }
+
+    /** Drops a connection nothing has been heard from; called on the timer wheel. */
+    void reap(long quietNanos) {
+        Metrics.IDLE_REAPED.increment();
+        System.out.println("Dropping " + (username == null ? "unnamed connection" : "'" + username + "'")
+                + ": nothing heard for " + quietNanos / 1_000_000_000L + " s");
+        active = false;
+        transport.abort();
+    }
+}
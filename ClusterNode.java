@@ -0,0 +1,506 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links several server processes into one chat. A node listens for other
+ * nodes on {@code -Dchat.cluster.port} and dials the ones listed in
+ * {@code -Dchat.cluster.peers=host:port,...}, redialling every
+ * {@code -Dchat.cluster.redialMs} while they are down. Each node tells the
+ * others which users are connected to it, so a private message goes straight
+ * to the node holding the recipient, and a group or room line crosses each
+ * link once however many users are behind it. When a link drops, that node's
+ * users show as gone until it comes back and sends its user list again.
+ *
+ * <p>Links are trusted with every user's traffic, so a node listens only on
+ * {@code -Dchat.cluster.bind} (default {@code 127.0.0.1}). Binding anywhere
+ * else needs a shared {@code -Dchat.cluster.secret}, set the same on every
+ * node: each side then proves it knows the secret, without sending it, by
+ * answering the other's random nonce with an HMAC-SHA256 over that nonce and
+ * its own node id. A peer that fails, or is silent for
+ * {@code -Dchat.cluster.handshakeMs} (10000), is dropped before it can send
+ * anything else.
+ *
+ * <p>Peer protocol, one line each: {@code NODE:<id>:<nonce>} both ways
+ * first, then {@code AUTH:<hmac>} both ways if there is a secret, then
+ * {@code USERS:<a,b,...>}, {@code JOIN:<user>}, {@code LEAVE:<user>},
+ * {@code GROUP:<from>:<line>}, {@code PRIVATE:<from>:<to>:<text>},
+ * {@code ROOM:<room>:<from>:<text>}, {@code GROUP_IMAGE:<from>:<base64>} and
+ * {@code PRIVATE_IMAGE:<from>:<to>:<base64>}. Node ids come from
+ * {@code -Dchat.cluster.id} (default {@code node-<cluster port>}) and must be
+ * unique.
+ *
+ * <p>A name is checked against every node's users at login, but two nodes
+ * can still let the same name in at the same moment. Each then hears the
+ * other's {@code JOIN}, and both settle it the same way: the node with the
+ * lower id keeps its user, and the other one logs its user out.
+ */
+final class ClusterNode {
+    static final long REDIAL_MS = Long.getLong("chat.cluster.redialMs", 2000);
+    static final long MAX_QUEUED_BYTES = Long.getLong("chat.cluster.maxQueuedBytes", 64L * 1024 * 1024);
+    static final int HANDSHAKE_MS = Integer.getInteger("chat.cluster.handshakeMs", 10_000);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String id;
+    private final int port;
+    private final InetAddress bind;
+    private final byte[] secret; // empty: loopback only, no AUTH step
+    private final List<String> seeds = new ArrayList<>();
+    private final SecureRandom random = new SecureRandom();
+
+    // Guarded by this, together with the USERS snapshot each new link is sent
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<String, Peer> remoteUsers = new ConcurrentHashMap<>();
+    private final AtomicLong relayed = new AtomicLong();
+
+    private ClusterNode(String id, int port, InetAddress bind, String secret, String seedList) {
+        this.id = id;
+        this.port = port;
+        this.bind = bind;
+        this.secret = secret.getBytes(EncodedMessage.CHARSET);
+        for (String seed : seedList.split(",")) {
+            if (!seed.trim().isEmpty()) {
+                seeds.add(seed.trim());
+            }
+        }
+    }
+
+    /** The configured node, started, or null when {@code chat.cluster.port} is not set. */
+    static ClusterNode start() {
+        int port = Integer.getInteger("chat.cluster.port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        String bindName = System.getProperty("chat.cluster.bind", "127.0.0.1");
+        String secret = System.getProperty("chat.cluster.secret", "");
+        ClusterNode node;
+        try {
+            InetAddress bind = InetAddress.getByName(bindName);
+            if (secret.isEmpty() && !bind.isLoopbackAddress()) {
+                System.err.println("[cluster] disabled: listening on " + bindName
+                        + " needs -Dchat.cluster.secret, so strangers can't join");
+                return null;
+            }
+            node = new ClusterNode(System.getProperty("chat.cluster.id", "node-" + port), port, bind, secret,
+                    System.getProperty("chat.cluster.peers", ""));
+            node.listen();
+        } catch (IOException e) {
+            System.err.println("[cluster] disabled, cannot listen on " + bindName + ":" + port + ": " + e.getMessage());
+            return null;
+        }
+        for (String seed : node.seeds) {
+            node.dial(seed);
+        }
+        return node;
+    }
+
+    boolean hasUser(String name) {
+        return remoteUsers.containsKey(name);
+    }
+
+    /** Users connected to other nodes right now. */
+    Set<String> users() {
+        return remoteUsers.keySet();
+    }
+
+    long relayed() {
+        return relayed.get();
+    }
+
+    // ─── Outgoing ────────────────────────────────────────────────────────────
+
+    synchronized void userJoined(String name) {
+        sendAll("JOIN:" + name);
+    }
+
+    synchronized void userLeft(String name) {
+        sendAll("LEAVE:" + name);
+    }
+
+    void relayGroup(String from, String line) {
+        sendAll("GROUP:" + from + ":" + line);
+    }
+
+    void relayRoom(String room, String from, String text) {
+        sendAll("ROOM:" + room + ":" + from + ":" + text);
+    }
+
+    void relayGroupImage(String from, ImageData image) {
+        sendAll("GROUP_IMAGE:" + from + ":" + image.base64());
+    }
+
+    /** Hands a private message to the recipient's node; false if no node has them. */
+    boolean relayPrivate(String from, String to, String text) {
+        return sendTo(to, "PRIVATE:" + from + ":" + to + ":" + text);
+    }
+
+    boolean relayPrivateImage(String from, String to, ImageData image) {
+        return sendTo(to, "PRIVATE_IMAGE:" + from + ":" + to + ":" + image.base64());
+    }
+
+    private boolean sendTo(String user, String line) {
+        Peer peer = remoteUsers.get(user);
+        if (peer == null) {
+            return false;
+        }
+        peer.send(line);
+        relayed.incrementAndGet();
+        return true;
+    }
+
+    private void sendAll(String line) {
+        for (Peer peer : peers.values()) {
+            peer.send(line);
+            relayed.incrementAndGet();
+        }
+    }
+
+    // ─── Links ───────────────────────────────────────────────────────────────
+
+    private void listen() throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, bind);
+        System.out.println("[cluster] node " + id + " listening on " + bind.getHostAddress() + ":" + port
+                + (secret.length > 0 ? " (shared secret)" : ""));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread link = new Thread(() -> serve(socket, false), "cluster-link");
+                    link.setDaemon(true);
+                    link.start();
+                } catch (IOException e) {
+                    System.err.println("[cluster] accept failed: " + e.getMessage());
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Keeps a link to {@code seed} up, unless that node already linked to us. */
+    private void dial(String seed) {
+        int colon = seed.lastIndexOf(':');
+        String host = seed.substring(0, colon);
+        int seedPort = Integer.parseInt(seed.substring(colon + 1));
+        Thread dialer = new Thread(() -> {
+            String known = null; // node id last seen at this address
+            while (true) {
+                if (known == null || !peers.containsKey(known)) {
+                    try {
+                        Socket socket = new Socket();
+                        socket.connect(new InetSocketAddress(host, seedPort), (int) REDIAL_MS);
+                        known = serve(socket, true);
+                    } catch (IOException e) {
+                        // not up yet; try again later
+                    }
+                }
+                try {
+                    Thread.sleep(REDIAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cluster-dial-" + seed);
+        dialer.setDaemon(true);
+        dialer.start();
+    }
+
+    /** Runs one link until it closes; returns the remote node's id, or null before the handshake. */
+    private String serve(Socket socket, boolean dialed) {
+        Peer peer = new Peer(socket, dialed);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_MS);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            peer.start(socket.getOutputStream());
+            String nonce = nonce();
+            peer.send("NODE:" + id + ":" + nonce);
+
+            String hello = FrameCodec.readLine(in, EncodedMessage.CHARSET);
+            int colon = hello == null ? -1 : hello.lastIndexOf(':');
+            if (colon <= 5 || !hello.startsWith("NODE:")) {
+                return null;
+            }
+            String nodeId = hello.substring(5, colon);
+            if (nodeId.equals(id)) {
+                System.err.println("[cluster] another node uses our id " + id + "; set -Dchat.cluster.id");
+                return nodeId;
+            }
+            if (secret.length > 0) {
+                peer.send("AUTH:" + proof(hello.substring(colon + 1), id));
+                String auth = FrameCodec.readLine(in, EncodedMessage.CHARSET);
+                if (auth == null || !auth.startsWith("AUTH:") || !MessageDigest.isEqual(
+                        auth.substring(5).getBytes(EncodedMessage.CHARSET),
+                        proof(nonce, nodeId).getBytes(EncodedMessage.CHARSET))) {
+                    System.err.println("[cluster] refused " + socket.getRemoteSocketAddress()
+                            + ": wrong or missing cluster secret");
+                    return null;
+                }
+            }
+            socket.setSoTimeout(0);
+            peer.nodeId = nodeId;
+            if (!register(peer)) {
+                return peer.nodeId;
+            }
+
+            String line;
+            while ((line = FrameCodec.readLine(in, EncodedMessage.CHARSET)) != null) {
+                receive(peer, line);
+            }
+        } catch (IOException e) {
+            // link dropped; handled below
+        } finally {
+            peer.close();
+            unregister(peer);
+        }
+        return peer.nodeId;
+    }
+
+    private String nonce() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return hex(bytes);
+    }
+
+    /** What node {@code prover} answers to {@code nonce}: HMAC-SHA256 under the shared secret. */
+    private String proof(String nonce, String prover) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            // With the prover's id, a node's answer can't be replayed to it as someone else's
+            return hex(mac.doFinal((nonce + ":" + prover).getBytes(EncodedMessage.CHARSET)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // every JRE ships HmacSHA256
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Adds a link after its handshake. If both nodes dialled each other, both
+     * keep the link dialled by the lower id and close the other one.
+     */
+    private synchronized boolean register(Peer peer) {
+        Peer existing = peers.get(peer.nodeId);
+        if (existing != null && existing.dialer().compareTo(peer.dialer()) < 0) {
+            peer.close();
+            return false;
+        }
+        peers.put(peer.nodeId, peer);
+        if (existing != null) {
+            existing.close();
+            dropUsers(existing);
+        }
+        peer.send("USERS:" + String.join(",", AppServer.sessions.names()));
+        System.out.println("[cluster] linked to node " + peer.nodeId + " (" + (peer.dialed ? "dialled" : "accepted")
+                + ", " + peers.size() + " peer(s))");
+        return true;
+    }
+
+    private void unregister(Peer peer) {
+        if (peer.nodeId == null) {
+            return;
+        }
+        boolean current;
+        synchronized (this) {
+            current = peers.remove(peer.nodeId, peer);
+        }
+        int gone = dropUsers(peer);
+        if (current) {
+            System.out.println("[cluster] lost node " + peer.nodeId + ", " + gone + " user(s) now offline");
+        }
+    }
+
+    private int dropUsers(Peer peer) {
+        int gone = 0;
+        for (String user : peer.users) {
+            if (remoteUsers.remove(user, peer) && !reassign(user)) {
+                AppServer.remoteUserLeft(user);
+                gone++;
+            }
+        }
+        peer.users.clear();
+        return gone;
+    }
+
+    // ─── Incoming ────────────────────────────────────────────────────────────
+
+    private void receive(Peer peer, String line) {
+        if (line.startsWith("USERS:")) {
+            for (String user : line.substring(6).split(",")) {
+                if (!user.isEmpty()) {
+                    addUser(peer, user);
+                }
+            }
+        } else if (line.startsWith("JOIN:")) {
+            addUser(peer, line.substring(5));
+        } else if (line.startsWith("LEAVE:")) {
+            String user = line.substring(6);
+            peer.users.remove(user);
+            if (remoteUsers.remove(user, peer) && !reassign(user)) {
+                AppServer.remoteUserLeft(user);
+            }
+        } else if (line.startsWith("GROUP:")) {
+            String[] parts = line.split(":", 3);
+            if (parts.length >= 3) {
+                AppServer.deliverGroupMessage(parts[1], parts[2], null);
+            }
+        } else if (line.startsWith("PRIVATE:")) {
+            String[] parts = line.split(":", 4);
+            if (parts.length >= 4) {
+                AppServer.receiveRelayedPrivate(parts[1], parts[2], parts[3]);
+            }
+        } else if (line.startsWith("ROOM:")) {
+            String[] parts = line.split(":", 4);
+            if (parts.length >= 4) {
+                AppServer.deliverRoomMessage(parts[1], parts[2], parts[3], null);
+            }
+        } else if (line.startsWith("GROUP_IMAGE:")) {
+            String[] parts = line.split(":", 3);
+            ImageData image = parts.length >= 3 ? ImageData.decode(parts[2]) : null;
+            if (image != null) {
+                AppServer.deliverGroupImage(parts[1], null, AppServer.media.put(image), image);
+            } else {
+                System.err.println("[cluster] dropped a malformed group image from node " + peer.nodeId);
+            }
+        } else if (line.startsWith("PRIVATE_IMAGE:")) {
+            String[] parts = line.split(":", 4);
+            ImageData image = parts.length >= 4 ? ImageData.decode(parts[3]) : null;
+            if (image != null) {
+                AppServer.receiveRelayedImage(parts[1], parts[2], image);
+            } else {
+                System.err.println("[cluster] dropped a malformed private image from node " + peer.nodeId);
+            }
+        }
+    }
+
+    private void addUser(Peer peer, String user) {
+        if (!ChatSession.isValidName(user)) {
+            return;
+        }
+        ChatSession local = AppServer.sessions.get(user);
+        if (local != null) {
+            // Both nodes see this clash; the lower id keeps the name, and its peer leaves it be
+            if (id.compareTo(peer.nodeId) < 0) {
+                System.err.println("[cluster] '" + user + "' also logged in on node " + peer.nodeId
+                        + "; keeping them here");
+                return;
+            }
+            local.loseName(peer.nodeId);
+        }
+        peer.users.add(user);
+        Peer previous = remoteUsers.put(user, peer);
+        if (previous == null) {
+            AppServer.remoteUserJoined(user);
+        }
+    }
+
+    /**
+     * After {@code user} left one node, points them at another node that
+     * still has them (a clash lost there); false if none does.
+     */
+    private boolean reassign(String user) {
+        for (Peer other : peers.values()) {
+            if (other.users.contains(user)) {
+                remoteUsers.putIfAbsent(user, other);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** One link to another node; lines go out through a byte-bounded queue and a writer thread. */
+    private final class Peer {
+        final Socket socket;
+        final boolean dialed;
+        final Set<String> users = ConcurrentHashMap.newKeySet();
+        volatile String nodeId;
+
+        private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private volatile boolean closed;
+        private Thread writer;
+
+        Peer(Socket socket, boolean dialed) {
+            this.socket = socket;
+            this.dialed = dialed;
+        }
+
+        /** Id of the node that opened this link. */
+        String dialer() {
+            return dialed ? id : nodeId;
+        }
+
+        void start(OutputStream socketOut) {
+            OutputStream out = new BufferedOutputStream(socketOut, 64 * 1024);
+            writer = new Thread(() -> {
+                try {
+                    while (!closed) {
+                        byte[] line = outbound.take();
+                        queuedBytes.addAndGet(-line.length);
+                        out.write(line);
+                        if (outbound.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    close();
+                }
+            }, "cluster-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void send(String line) {
+            if (closed) {
+                return;
+            }
+            byte[] bytes = (line + "\n").getBytes(EncodedMessage.CHARSET);
+            if (queuedBytes.addAndGet(bytes.length) > MAX_QUEUED_BYTES) {
+                // Reconnecting resends the user list, which is cheaper than holding more
+                System.err.println("[cluster] link to " + nodeId + " is backed up; reconnecting");
+                close();
+                return;
+            }
+            outbound.add(bytes);
+        }
+
+        void close() {
+            closed = true;
+            if (writer != null) {
+                writer.interrupt();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional per-connection stream compression. A client offers the
+ * {@value #CAP_DEFLATE} capability in its {@code HELLO} line; if the server
+ * runs with {@code -Dchat.compress=true} it accepts, and from then on both
+ * directions are one raw Deflate stream each, sync-flushed after every batch
+ * of messages. The switch point is the same as for binary frames: the byte
+ * after the client's {@code HELLO} line inbound, the byte after
+ * {@code HELLO_OK} outbound. Framing (text lines or {@link FrameCodec}
+ * frames) sits inside the compressed stream.
+ *
+ * <p>Both sides preset {@link #DICTIONARY}, the protocol prefixes, so even
+ * the first short line compresses. Each connection holds a deflater and an
+ * inflater (a few hundred KB of native memory), which is why it is off by
+ * default; {@code -Dchat.compress.level} trades CPU for ratio (default 1).
+ * Savings and time spent appear in {@code /stats}.
+ */
+final class Compression {
+    static final String CAP_DEFLATE = "deflate";
+    static final boolean ENABLED = Boolean.getBoolean("chat.compress");
+    static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+
+    /** Deflate favours recent dictionary bytes, so the commonest strings come last. */
+    static final byte[] DICTIONARY = (
+            "IMG_REJECT:IMG_ABORT:MEDIA_MISSING:MEDIA_GET:IMAGE_REF:IMG_REF:HISTORY_END:HISTORY_ITEM:HISTORY:"
+            + "ROOMS:ROOM_LEFT:ROOM_JOINED:ROOM_MSG:ROOM:IMG_END:IMG_CHUNK:IMG_BEGIN:"
+            + "IMAGE_PRIVATE_TO:IMAGE_PRIVATE:IMG_PRIVATE:IMAGE:iVBORw0KGgoAAAANSUhEUgAA"
+            + "ERROR:USERS_LIST:USER_LEFT:USER_JOINED: left the chat joined the chat"
+            + "SYSTEM:MSG_PRIVATE:PRIVATE_TO:PRIVATE:").getBytes(StandardCharsets.US_ASCII);
+
+    private Compression() {
+    }
+
+    static Deflater newDeflater() {
+        Deflater deflater = new Deflater(LEVEL, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    static Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    /**
+     * Outbound half on the server: messages are added one by one and
+     * {@link #take} hands back what is ready to write. Writer thread only.
+     */
+    static final class Compressor {
+        private final Deflater deflater = newDeflater();
+        private byte[] out = new byte[8192];
+        private int length;
+        private long nanos;
+        private boolean unflushed;
+
+        void add(byte[] bytes) {
+            unflushed = true;
+            long start = System.nanoTime();
+            deflater.setInput(bytes);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            nanos += System.nanoTime() - start;
+            Metrics.DEFLATE_IN.add(bytes.length);
+        }
+
+        /** Compressed bytes ready so far. */
+        int size() {
+            return length;
+        }
+
+        /**
+         * The compressed bytes so far, sync-flushed if {@code flush} so the
+         * peer can decode everything added. Valid until the next {@link #add}.
+         */
+        ByteBuffer take(boolean flush) {
+            if (flush && unflushed) {
+                unflushed = false;
+                long start = System.nanoTime();
+                while (deflate(Deflater.SYNC_FLUSH) == 0) {
+                    // Output array was full; it has grown, go again
+                }
+                nanos += System.nanoTime() - start;
+                Metrics.DEFLATE.record(nanos);
+                nanos = 0;
+            }
+            Metrics.DEFLATE_OUT.add(length);
+            ByteBuffer block = ByteBuffer.wrap(out, 0, length);
+            length = 0;
+            return block;
+        }
+
+        /** Drops a large output array once an image has gone through. */
+        void trim() {
+            if (length == 0 && out.length > 64 * 1024) {
+                out = new byte[8192];
+            }
+        }
+
+        /** Returns 0 if the output array filled up (and grew), 1 otherwise. */
+        private int deflate(int flush) {
+            int n = deflater.deflate(out, length, out.length - length, flush);
+            length += n;
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+                return 0;
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * Inbound half for the NIO engine, which inflates whole reads itself. Goes
+     * through arrays, as the {@code ByteBuffer} overloads of {@link Inflater}
+     * need JDK 11; the read buffer is direct, so its bytes are copied once.
+     */
+    static final class Decompressor {
+        private final Inflater inflater = newInflater();
+        private byte[] input = new byte[8192];
+
+        void setInput(ByteBuffer compressed) {
+            int n = compressed.remaining();
+            Metrics.INFLATE_IN.add(n);
+            if (input.length < n) {
+                input = new byte[n];
+            }
+            compressed.get(input, 0, n);
+            inflater.setInput(input, 0, n);
+        }
+
+        /** Inflates into {@code plain} (cleared, then flipped; must be a heap buffer); 0 once the input is used up. */
+        int inflate(ByteBuffer plain) throws IOException {
+            plain.clear();
+            try {
+                int n = inflater.inflate(plain.array(), plain.arrayOffset(), plain.remaining());
+                plain.position(n);
+                plain.flip();
+                Metrics.INFLATE_OUT.add(n);
+                return n;
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed stream: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Inflating stream for blocking readers; counts bytes and the time spent
+     * inflating, but not the time spent waiting on the socket.
+     */
+    static final class InflatingStream extends InflaterInputStream {
+        private long filling;
+
+        InflatingStream(InputStream in) {
+            super(in, newInflater(), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            long start = System.nanoTime();
+            super.fill();
+            filling += System.nanoTime() - start;
+            Metrics.INFLATE_IN.add(len);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            filling = 0;
+            long start = System.nanoTime();
+            int read;
+            try {
+                read = super.read(b, off, n);
+            } catch (EOFException e) {
+                return -1; // The peer closed the socket; the stream itself never ends
+            }
+            Metrics.INFLATE.record(System.nanoTime() - start - filling);
+            if (read > 0) {
+                Metrics.INFLATE_OUT.add(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that run blocking {@link ClientHandler} loops, chosen with
+ * {@code -Dchat.executor}:
+ * <ul>
+ * <li>{@code platform} – one platform thread per connection (the original behaviour)</li>
+ * <li>{@code virtual} – one virtual thread per connection (JDK 21+)</li>
+ * <li>{@code bounded} – a fixed pool of {@code -Dchat.executor.threads} platform
+ * threads; connections beyond that wait for a free thread</li>
+ * </ul>
+ */
+final class ConnectionExecutors {
+    static final AtomicInteger activeHandlers = new AtomicInteger();
+
+    private ConnectionExecutors() {
+    }
+
+    static ExecutorService create(String mode, int threads) {
+        switch (mode.toLowerCase()) {
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadPerTask();
+                if (virtual != null) {
+                    return virtual;
+                }
+                System.err.println("Virtual threads need JDK 21+, falling back to platform threads");
+                return Executors.newCachedThreadPool(namedFactory("client-"));
+            case "bounded":
+                return Executors.newFixedThreadPool(threads, namedFactory("client-pool-"));
+            default:
+                return Executors.newCachedThreadPool(namedFactory("client-"));
+        }
+    }
+
+    /**
+     * Executor for the short drain tasks that write each client's outbound
+     * queue. Kept apart from the handler pool so a full bounded pool of
+     * blocked readers can't starve the writers.
+     */
+    static ExecutorService createWriters(String mode) {
+        if (mode.equalsIgnoreCase("virtual")) {
+            ExecutorService virtual = newVirtualThreadPerTask();
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+        return Executors.newCachedThreadPool(namedFactory("client-writer-"));
+    }
+
+    // Looked up reflectively so the sources still build on JDK 8-20
+    private static ExecutorService newVirtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** One-line footprint summary so the modes can be compared under the same load. */
+    static String footprint() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int carriers = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            // Virtual threads are mounted on the ForkJoinPool carrier threads
+            if (t.getName().startsWith("ForkJoinPool-")) {
+                carriers++;
+            }
+        }
+        Runtime rt = Runtime.getRuntime();
+        long usedMb = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+        return "handlers=" + activeHandlers.get()
+                + " platformThreads=" + threads.getThreadCount()
+                + " peakThreads=" + threads.getPeakThreadCount()
+                + " carriers=" + carriers
+                + " heapUsedMb=" + usedMb;
+    }
+}
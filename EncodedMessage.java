@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One outbound protocol message, encoded at most once per wire format. A
+ * broadcast builds a single instance and hands it to every recipient's
+ * {@link OutboundQueue}; text-protocol writers share one encoded line and
+ * binary-framed writers (see {@link FrameCodec}) share one frame, instead of
+ * each writer re-encoding the string (a multi-megabyte line for images).
+ */
+final class EncodedMessage {
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    // Text messages: the protocol line. Images and chunks: the line prefix before the base64.
+    private final String line;
+    private final ImageData image;
+    private final byte frameType;
+    private final byte imageFlags;
+    private final String imagePeer;
+    private final long transferId;
+    private final boolean textOnly;
+
+    private byte[] text;
+    private byte[] frame;
+
+    private EncodedMessage(String line, ImageData image, byte frameType, byte imageFlags,
+            String imagePeer, long transferId, boolean textOnly) {
+        this.line = line;
+        this.image = image;
+        this.frameType = frameType;
+        this.imageFlags = imageFlags;
+        this.imagePeer = imagePeer;
+        this.transferId = transferId;
+        this.textOnly = textOnly;
+    }
+
+    static EncodedMessage of(String line) {
+        return new EncodedMessage(line, null, FrameCodec.TYPE_LINE, (byte) 0, null, 0, false);
+    }
+
+    /**
+     * A line written as plain text even on a binary-framed connection; used for
+     * the {@code HELLO_OK} reply that marks the switch to frames (and to
+     * {@link Compression}, which writers start right after it).
+     */
+    static EncodedMessage textLine(String line) {
+        return new EncodedMessage(line, null, FrameCodec.TYPE_LINE, (byte) 0, null, 0, true);
+    }
+
+    /**
+     * An image message. Text clients get {@code textPrefix + base64}, binary
+     * clients an image frame with the given flags and peer name.
+     */
+    static EncodedMessage image(String textPrefix, byte flags, String peer, ImageData image) {
+        return new EncodedMessage(textPrefix, image, FrameCodec.TYPE_IMAGE, flags, peer, 0, false);
+    }
+
+    /**
+     * One piece of a chunked image transfer: {@code IMG_CHUNK:<id>:<base64>}
+     * for text clients, a chunk frame for binary ones.
+     */
+    static EncodedMessage chunk(long transferId, ImageData data) {
+        return new EncodedMessage("IMG_CHUNK:" + transferId + ":", data, FrameCodec.TYPE_CHUNK,
+                (byte) 0, null, transferId, false);
+    }
+
+    /** The encoded message for one wire format. Callers must not modify it. */
+    synchronized byte[] bytes(boolean binary) {
+        if (binary && !textOnly) {
+            if (frame == null) {
+                switch (frameType) {
+                    case FrameCodec.TYPE_IMAGE:
+                        frame = FrameCodec.imageFrame(imageFlags, imagePeer, image.bytes());
+                        break;
+                    case FrameCodec.TYPE_CHUNK:
+                        frame = FrameCodec.chunkFrame(transferId, image.bytes());
+                        break;
+                    default:
+                        frame = FrameCodec.lineFrame(line);
+                }
+            }
+            return frame;
+        }
+        if (text == null) {
+            String full = image != null ? line + image.base64() : line;
+            text = (full + "\n").getBytes(CHARSET);
+        }
+        return text;
+    }
+
+    /** Approximate encoded size, used for queue byte limits before encoding. */
+    int length() {
+        return image != null ? line.length() + image.size() * 4 / 3 : line.length() + 1;
+    }
+
+    boolean isTextOnly() {
+        return textOnly;
+    }
+
+    boolean isImage() {
+        return image != null;
+    }
+
+    /** A fresh read-only view for one recipient; the bytes themselves are shared. */
+    ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+    }
+}
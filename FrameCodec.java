@@ -0,0 +1,222 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire codec shared by {@link AppServer} and {@link AppClient}.
+ *
+ * <p>Connections start in the newline-delimited text protocol. A client that
+ * sends {@code HELLO:...,binary} and gets {@code HELLO_OK:...,binary} back
+ * switches both directions to length-prefixed frames right after that line:
+ *
+ * <pre>
+ *   type:1  flags:1  length:4 (big-endian)  payload:length
+ * </pre>
+ *
+ * {@link #TYPE_LINE} frames carry one ordinary protocol line as UTF-8, so every
+ * existing message keeps its meaning. {@link #TYPE_IMAGE} frames carry raw image
+ * bytes instead of base64: {@code peerLength:2 peer:UTF-8 image}, where the
+ * flags say whether it is a broadcast, a private image or the sender's echo.
+ * {@link #TYPE_CHUNK} frames carry one piece of a chunked image transfer
+ * (see {@link ImageTransfers}): {@code transferId:8 data}.
+ */
+final class FrameCodec {
+    static final String CAP_BINARY = "binary";
+
+    static final byte TYPE_LINE = 1;
+    static final byte TYPE_IMAGE = 2;
+    static final byte TYPE_CHUNK = 3;
+
+    /** Image addressed to (client to server) or from (server to client) one peer. */
+    static final byte FLAG_PRIVATE = 1;
+    /** Server confirming a private image back to its sender; peer is the recipient. */
+    static final byte FLAG_ECHO = 2;
+    /** Reply to {@code MEDIA_GET}; peer is the image's content hash (see {@link MediaStore}). */
+    static final byte FLAG_MEDIA = 4;
+    /** Preview of a stored image (see {@link Thumbnails}); peer is its content hash. */
+    static final byte FLAG_THUMB = 8;
+
+    static final int HEADER_BYTES = 6;
+    static final int MAX_FRAME_BYTES = Integer.getInteger("chat.maxFrameBytes", 32 * 1024 * 1024);
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    private FrameCodec() {
+    }
+
+    /** One decoded frame. */
+    static final class Frame {
+        final byte type;
+        final byte flags;
+        final byte[] payload;
+
+        Frame(byte type, byte flags, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.payload = payload;
+        }
+
+        String text() {
+            return new String(payload, UTF8);
+        }
+
+        boolean hasFlag(byte flag) {
+            return (flags & flag) != 0;
+        }
+
+        /** Peer name of an image frame. */
+        String peer() {
+            int length = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+            return new String(payload, 2, length, UTF8);
+        }
+
+        /** Raw image bytes of an image frame. */
+        byte[] image() {
+            int offset = 2 + (((payload[0] & 0xff) << 8) | (payload[1] & 0xff));
+            byte[] image = new byte[payload.length - offset];
+            System.arraycopy(payload, offset, image, 0, image.length);
+            return image;
+        }
+
+        /** Transfer id of a chunk frame. */
+        long transferId() {
+            return ByteBuffer.wrap(payload, 0, 8).getLong();
+        }
+
+        /** Data of a chunk frame. */
+        byte[] chunk() {
+            byte[] data = new byte[payload.length - 8];
+            System.arraycopy(payload, 8, data, 0, data.length);
+            return data;
+        }
+    }
+
+    // ─── Encoding ────────────────────────────────────────────────────────────
+    static byte[] lineFrame(String line) {
+        return frame(TYPE_LINE, (byte) 0, line.getBytes(UTF8), null);
+    }
+
+    static byte[] imageFrame(byte flags, String peer, byte[] image) {
+        byte[] name = peer.getBytes(UTF8);
+        byte[] prefix = new byte[2 + name.length];
+        prefix[0] = (byte) (name.length >>> 8);
+        prefix[1] = (byte) name.length;
+        System.arraycopy(name, 0, prefix, 2, name.length);
+        return frame(TYPE_IMAGE, flags, prefix, image);
+    }
+
+    static byte[] chunkFrame(long transferId, byte[] data) {
+        byte[] id = ByteBuffer.allocate(8).putLong(transferId).array();
+        return frame(TYPE_CHUNK, (byte) 0, id, data);
+    }
+
+    private static byte[] frame(byte type, byte flags, byte[] first, byte[] second) {
+        int length = first.length + (second == null ? 0 : second.length);
+        byte[] frame = new byte[HEADER_BYTES + length];
+        frame[0] = type;
+        frame[1] = flags;
+        frame[2] = (byte) (length >>> 24);
+        frame[3] = (byte) (length >>> 16);
+        frame[4] = (byte) (length >>> 8);
+        frame[5] = (byte) length;
+        System.arraycopy(first, 0, frame, HEADER_BYTES, first.length);
+        if (second != null) {
+            System.arraycopy(second, 0, frame, HEADER_BYTES + first.length, second.length);
+        }
+        return frame;
+    }
+
+    // ─── Blocking decoding ───────────────────────────────────────────────────
+    /**
+     * Reads one text line byte by byte, so nothing past the terminator is
+     * consumed and the stream can switch to frames afterwards. Returns null at EOF.
+     */
+    static String readLine(InputStream in, Charset charset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int end = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, end, charset);
+            }
+            if (line.size() >= MAX_FRAME_BYTES) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(charset.name());
+    }
+
+    /** Reads one frame, or returns null at a clean EOF between frames. */
+    static Frame readFrame(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(in, header, 1, HEADER_BYTES - 1);
+        int length = payloadLength(header, 0);
+        byte[] payload = new byte[length];
+        readFully(in, payload, 0, length);
+        return new Frame(header[0], header[1], payload);
+    }
+
+    private static void readFully(InputStream in, byte[] into, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = in.read(into, offset, length);
+            if (n < 0) {
+                throw new EOFException("Connection closed mid-frame");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private static int payloadLength(byte[] header, int offset) throws IOException {
+        int length = ((header[offset + 2] & 0xff) << 24) | ((header[offset + 3] & 0xff) << 16)
+                | ((header[offset + 4] & 0xff) << 8) | (header[offset + 5] & 0xff);
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Frame too large: " + length);
+        }
+        return length;
+    }
+
+    // ─── Incremental decoding ────────────────────────────────────────────────
+    /** Reassembles frames from whatever chunks a non-blocking channel delivers. */
+    static final class Decoder {
+        private final byte[] header = new byte[HEADER_BYTES];
+        private int headerRead;
+        private byte[] payload;
+        private int payloadRead;
+
+        /** Consumes bytes from {@code in}; returns a frame once one is complete, else null. */
+        Frame next(ByteBuffer in) throws IOException {
+            if (payload == null) {
+                int n = Math.min(HEADER_BYTES - headerRead, in.remaining());
+                in.get(header, headerRead, n);
+                headerRead += n;
+                if (headerRead < HEADER_BYTES) {
+                    return null;
+                }
+                payload = new byte[payloadLength(header, 0)];
+                payloadRead = 0;
+            }
+            int n = Math.min(payload.length - payloadRead, in.remaining());
+            in.get(payload, payloadRead, n);
+            payloadRead += n;
+            if (payloadRead < payload.length) {
+                return null;
+            }
+            Frame frame = new Frame(header[0], header[1], payload);
+            payload = null;
+            headerRead = 0;
+            return frame;
+        }
+    }
+}
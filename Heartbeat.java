@@ -0,0 +1,73 @@
+/**
+ * Idle detection for one connection, driven by the shared {@link TimerWheel}.
+ * Anything a logged-in client sends counts as a sign of life; before login
+ * nothing does, so the deadline runs from connect however much arrives. After
+ * {@code -Dchat.heartbeat.idleSeconds} (30; 0 disables) of silence a client
+ * that offered {@value #CAP_HEARTBEAT} in its {@code HELLO} is sent
+ * {@code PING:<n>} and must answer {@code PONG:<n>}; if nothing arrives
+ * within {@code -Dchat.heartbeat.timeoutSeconds} (10) more it is dropped
+ * and leaves the roster. Older clients can't be asked, so once logged in
+ * they are left to TCP keepalive; before login they get the same deadline.
+ *
+ * <p>Reads only record a timestamp. The one timeout per connection is
+ * re-armed lazily when it fires, so a busy connection costs nothing extra.
+ */
+final class Heartbeat extends TimerWheel.Timeout {
+    static final String CAP_HEARTBEAT = "heartbeat";
+    static final long IDLE_NANOS = Long.getLong("chat.heartbeat.idleSeconds", 30) * 1_000_000_000L;
+    static final long TIMEOUT_NANOS = Long.getLong("chat.heartbeat.timeoutSeconds", 10) * 1_000_000_000L;
+    static final boolean ENABLED = IDLE_NANOS > 0;
+
+    /** 100 ms ticks and 512 buckets: one turn covers the default deadlines. */
+    static final TimerWheel WHEEL = ENABLED ? new TimerWheel("heartbeat-wheel", 100_000_000L, 512) : null;
+
+    private final ChatSession session;
+    private volatile long lastHeard = System.nanoTime();
+    private boolean pinged; // wheel thread only
+
+    Heartbeat(ChatSession session) {
+        this.session = session;
+    }
+
+    void start() {
+        if (ENABLED) {
+            WHEEL.schedule(this, IDLE_NANOS);
+        }
+    }
+
+    /** Any inbound message after login; called on the connection's reader. */
+    void heard(long now) {
+        lastHeard = now;
+    }
+
+    void stop() {
+        cancel();
+    }
+
+    @Override
+    void expire(long now) {
+        if (!session.isActive()) {
+            return;
+        }
+        long quiet = now - lastHeard;
+        if (quiet < IDLE_NANOS) {
+            pinged = false;
+            WHEEL.schedule(this, IDLE_NANOS - quiet);
+            return;
+        }
+        boolean pingable = session.supports(CAP_HEARTBEAT);
+        if (!pingable && session.isLoggedIn()) {
+            return;
+        }
+        if (quiet >= IDLE_NANOS + TIMEOUT_NANOS) {
+            session.reap(quiet);
+            return;
+        }
+        if (pingable && !pinged) {
+            pinged = true;
+            Metrics.PINGS.increment();
+            session.sendMessage("PING:" + now / 1_000_000);
+        }
+        WHEEL.schedule(this, IDLE_NANOS + TIMEOUT_NANOS - quiet);
+    }
+}
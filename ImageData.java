@@ -0,0 +1,59 @@
+import java.util.Base64;
+
+/**
+ * An image in transit through the server. Text clients send and receive it as
+ * base64, binary-framed clients as raw bytes; whichever form arrives is kept
+ * and the other is produced at most once, only if some recipient needs it.
+ */
+final class ImageData {
+    private byte[] raw;
+    private String base64;
+
+    private ImageData(byte[] raw, String base64) {
+        this.raw = raw;
+        this.base64 = base64;
+    }
+
+    static ImageData ofBytes(byte[] raw) {
+        return new ImageData(raw, null);
+    }
+
+    /**
+     * Decodes base64 from a client or peer right away, keeping both forms, so
+     * a malformed image is refused where it arrives; null if it is not base64.
+     */
+    static ImageData decode(String base64) {
+        try {
+            return new ImageData(Base64.getDecoder().decode(base64), base64);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    synchronized byte[] bytes() {
+        if (raw == null) {
+            raw = Base64.getDecoder().decode(base64);
+        }
+        return raw;
+    }
+
+    synchronized String base64() {
+        if (base64 == null) {
+            base64 = Base64.getEncoder().encodeToString(raw);
+        }
+        return base64;
+    }
+
+    /** Size in bytes of the raw image, without converting. */
+    synchronized int size() {
+        if (raw != null) {
+            return raw.length;
+        }
+        int length = base64.length();
+        int padding = 0;
+        while (padding < 2 && padding < length && base64.charAt(length - 1 - padding) == '=') {
+            padding++;
+        }
+        return length / 4 * 3 - padding;
+    }
+}
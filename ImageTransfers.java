@@ -0,0 +1,230 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chunked image uploads from one session, relayed to recipients chunk by chunk
+ * as they arrive, so streaming recipients see progress without waiting for the
+ * whole image. The server also assembles each upload, one copy however many
+ * recipients there are, so that every image it delivers ends up in the
+ * {@link MediaStore} and the history; the copy grows as chunks arrive, so an
+ * upload holds only as much memory as it has sent. The declared size is
+ * charged to the sender's {@link RateLimiter} at {@code IMG_BEGIN}, and the
+ * chunks of an open upload are then free. Wire format
+ * (lines; in binary mode the chunk data travels as {@link FrameCodec#TYPE_CHUNK}
+ * frames instead of base64):
+ *
+ * <pre>
+ *   IMG_BEGIN:&lt;id&gt;:&lt;totalBytes&gt;:&lt;G|P&gt;:&lt;peer&gt;   G = group, P = private
+ *   IMG_CHUNK:&lt;id&gt;:&lt;base64&gt;
+ *   IMG_END:&lt;id&gt;
+ *   IMG_ABORT:&lt;id&gt;:&lt;reason&gt;                      server to recipients: transfer dropped
+ *   IMG_REJECT:&lt;id&gt;:&lt;reason&gt;                     server to sender: upload refused
+ * </pre>
+ *
+ * From a client, {@code id} is the client's own transfer id and {@code peer}
+ * the private recipient (empty for group). From the server, {@code id} is a
+ * server-wide relay id and {@code peer} the sender. Recipients that did not
+ * advertise {@link #CAP_CHUNKED} get the assembled image the old way at the end,
+ * and those that advertise {@link MediaStore#CAP_MEDIA} get a reference to it
+ * in the {@link MediaStore}.
+ * Fed by the owning session's reader; synchronized because a disconnect may
+ * abort from another thread.
+ */
+final class ImageTransfers {
+    static final String CAP_CHUNKED = "chunked";
+    static final int MAX_IMAGE_BYTES = Integer.getInteger("chat.image.maxBytes", 10 * 1024 * 1024);
+    static final int MAX_CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_CONCURRENT_UPLOADS = 4;
+
+    private static final AtomicLong nextRelayId = new AtomicLong();
+
+    private final ChatSession sender;
+    private final Map<Long, Relay> uploads = new HashMap<>();
+
+    ImageTransfers(ChatSession sender) {
+        this.sender = sender;
+    }
+
+    /** {@code IMG_BEGIN:<id>:<totalBytes>:<G|P>:<recipient>}, already split by the session. */
+    synchronized void begin(long clientId, long total, boolean isPrivate, String recipient) {
+        if (total <= 0 || total > MAX_IMAGE_BYTES) {
+            reject(clientId, "Image too large (limit " + (MAX_IMAGE_BYTES / (1024 * 1024)) + " MB)");
+            return;
+        }
+        if (uploads.size() >= MAX_CONCURRENT_UPLOADS || uploads.containsKey(clientId)) {
+            reject(clientId, "Too many uploads in progress");
+            return;
+        }
+
+        List<ChatSession> recipients = new ArrayList<>();
+        if (isPrivate) {
+            ChatSession target = AppServer.sessions.get(recipient);
+            if (target != null) {
+                recipients.add(target);
+            } else if (!AppServer.acceptsOfflineMail(recipient)
+                    && (AppServer.cluster == null || !AppServer.cluster.hasUser(recipient))) {
+                reject(clientId, "User " + recipient + " is not online.");
+                return;
+            }
+        } else {
+            for (ChatSession client : AppServer.sessions) {
+                if (client != sender && client.isLoggedIn() && client.isActive()) {
+                    recipients.add(client);
+                }
+            }
+        }
+
+        Relay relay = new Relay(nextRelayId.incrementAndGet(), total, isPrivate, recipient);
+        EncodedMessage announce = EncodedMessage.of("IMG_BEGIN:" + relay.id + ":" + total + ":"
+                + (isPrivate ? "P" : "G") + ":" + sender.getUsername());
+        for (ChatSession client : recipients) {
+            if (client.supports(MediaStore.CAP_MEDIA)) {
+                relay.referenced.add(client);
+            } else if (client.supports(CAP_CHUNKED)) {
+                relay.streaming.add(client);
+                client.send(announce);
+            } else {
+                relay.legacy.add(client);
+            }
+        }
+        // Offline or on another node: route it like a whole image at the end
+        relay.offline = recipients.isEmpty() && isPrivate;
+        uploads.put(clientId, relay);
+    }
+
+    synchronized void chunk(long clientId, ImageData data) {
+        Relay relay = uploads.get(clientId);
+        if (relay == null) {
+            return;
+        }
+        int size = data.size();
+        relay.received += size;
+        if (size > MAX_CHUNK_BYTES || relay.received > relay.total) {
+            abort(clientId, relay, "Image exceeded its declared size");
+            return;
+        }
+        EncodedMessage chunk = EncodedMessage.chunk(relay.id, data);
+        for (ChatSession client : relay.streaming) {
+            client.send(chunk);
+        }
+        relay.append(data.bytes());
+    }
+
+    /** True if {@code clientId} is an upload in progress, whose size was charged at its start. */
+    synchronized boolean open(long clientId) {
+        return uploads.containsKey(clientId);
+    }
+
+    synchronized void end(long clientId) {
+        Relay relay = uploads.get(clientId);
+        if (relay == null) {
+            return;
+        }
+        if (relay.received != relay.total) {
+            abort(clientId, relay, "Image incomplete");
+            return;
+        }
+        uploads.remove(clientId);
+        EncodedMessage done = EncodedMessage.of("IMG_END:" + relay.id);
+        for (ChatSession client : relay.streaming) {
+            client.send(done);
+        }
+        // Grown no further than the declared size, which it now has exactly
+        ImageData image = ImageData.ofBytes(relay.assembled);
+        if (relay.offline) {
+            AppServer.sendPrivateImage(sender.getUsername(), relay.recipient, null, image);
+        } else {
+            String hash = AppServer.media.put(image);
+            AppServer.logMessage(relay.isPrivate ? MessageLog.KIND_PRIVATE_IMAGE : MessageLog.KIND_GROUP_IMAGE,
+                    sender.getUsername(), relay.isPrivate ? relay.recipient : "All", hash);
+            String kind = relay.isPrivate ? "P" : "G";
+            for (ChatSession client : relay.referenced) {
+                AppServer.sendImageRef(client, hash, image, kind, sender.getUsername());
+            }
+            EncodedMessage whole = relay.isPrivate
+                    ? EncodedMessage.image("IMAGE_PRIVATE:" + sender.getUsername() + ":",
+                            FrameCodec.FLAG_PRIVATE, sender.getUsername(), image)
+                    : EncodedMessage.image(sender.getUsername() + ": IMAGE:",
+                            (byte) 0, sender.getUsername(), image);
+            for (ChatSession client : relay.legacy) {
+                client.send(whole);
+            }
+            if (!relay.isPrivate && AppServer.cluster != null) {
+                AppServer.cluster.relayGroupImage(sender.getUsername(), image);
+            }
+        }
+    }
+
+    /** Drops an upload whose data the session could not read. */
+    synchronized void fail(long clientId, String reason) {
+        Relay relay = uploads.get(clientId);
+        if (relay != null) {
+            abort(clientId, relay, reason);
+        } else {
+            reject(clientId, reason);
+        }
+    }
+
+    /** Called when the sender disconnects; recipients drop their partial images. */
+    synchronized void abortAll() {
+        Iterator<Map.Entry<Long, Relay>> it = uploads.entrySet().iterator();
+        while (it.hasNext()) {
+            Relay relay = it.next().getValue();
+            it.remove();
+            notifyAbort(relay, "Sender disconnected");
+        }
+    }
+
+    private void abort(long clientId, Relay relay, String reason) {
+        uploads.remove(clientId);
+        notifyAbort(relay, reason);
+        reject(clientId, reason);
+    }
+
+    private void notifyAbort(Relay relay, String reason) {
+        EncodedMessage abort = EncodedMessage.of("IMG_ABORT:" + relay.id + ":" + reason);
+        for (ChatSession client : relay.streaming) {
+            client.send(abort);
+        }
+    }
+
+    private void reject(long clientId, String reason) {
+        sender.sendMessage("IMG_REJECT:" + clientId + ":" + reason);
+    }
+
+    private static final class Relay {
+        final long id;
+        final long total;
+        final boolean isPrivate;
+        final String recipient;
+        final List<ChatSession> streaming = new ArrayList<>();
+        final List<ChatSession> legacy = new ArrayList<>();
+        final List<ChatSession> referenced = new ArrayList<>();
+        byte[] assembled = new byte[0];
+        boolean offline; // private recipient is not connected to this node
+        long received;
+
+        Relay(long id, long total, boolean isPrivate, String recipient) {
+            this.id = id;
+            this.total = total;
+            this.isPrivate = isPrivate;
+            this.recipient = recipient;
+        }
+
+        /** Adds a chunk after the {@code received - bytes.length} bytes already here. */
+        void append(byte[] bytes) {
+            int at = (int) received - bytes.length;
+            if (received > assembled.length) {
+                // Doubling, but never past the declared size
+                int grown = (int) Math.min(total, Math.max(received, assembled.length * 2L));
+                assembled = Arrays.copyOf(assembled, grown);
+            }
+            System.arraycopy(bytes, 0, assembled, at, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table-driven routing of protocol lines by their leading keyword, used by
+ * the server's {@link ChatSession} and by the client. The keyword is
+ * everything before the first separator ({@code ':'} for protocol lines,
+ * {@code ' '} for slash commands). It is found by hashing the line's own
+ * chars into an open-addressed table, and the fields after it are recorded
+ * as offsets into the line in a reusable {@link Fields}, so routing a line
+ * allocates nothing; handlers copy out only the fields they keep.
+ *
+ * <p>A handler registered with {@code fields = n} sees at most n fields,
+ * the last one running to the end of the line, like {@code split(sep, n + 1)}.
+ * Tables are built once and then only read, so one can be shared by every
+ * connection; each reader thread brings its own {@link Fields}.
+ */
+final class LineDispatcher<T> {
+    interface Handler<T> {
+        void handle(T target, Fields fields);
+    }
+
+    private final char separator;
+    private final List<Handler<T>> handlers = new ArrayList<>();
+    private String[] keys = new String[16];
+    private int[] limits = new int[16];
+    private int[] slots = new int[16];
+    private int longestKey;
+
+    LineDispatcher(char separator) {
+        this.separator = separator;
+    }
+
+    /** Routes lines starting with {@code keyword} and the separator (or equal to it). */
+    LineDispatcher<T> on(String keyword, int fields, Handler<T> handler) {
+        if (fields > Fields.MAX) {
+            throw new IllegalArgumentException("At most " + Fields.MAX + " fields");
+        }
+        if (handlers.size() * 2 >= keys.length) {
+            rehash(keys.length * 2);
+        }
+        insert(keyword, fields, handlers.size());
+        handlers.add(handler);
+        longestKey = Math.max(longestKey, keyword.length());
+        return this;
+    }
+
+    /**
+     * Hands {@code line} to the handler for its keyword. Returns false,
+     * without touching {@code fields}, if no keyword matched.
+     */
+    boolean dispatch(T target, String line, Fields fields) {
+        int end = Math.min(line.length(), longestKey + 1);
+        int hash = 0;
+        int keyLength = 0;
+        while (keyLength < end) {
+            char c = line.charAt(keyLength);
+            if (c == separator) {
+                break;
+            }
+            hash = 31 * hash + c;
+            keyLength++;
+        }
+        if (keyLength > longestKey) {
+            return false;
+        }
+        int mask = keys.length - 1;
+        for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key.length() == keyLength && line.startsWith(key)) {
+                fields.parse(line, keyLength, separator, limits[i]);
+                handlers.get(slots[i]).handle(target, fields);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void insert(String keyword, int fields, int slot) {
+        int mask = keys.length - 1;
+        int i = spread(keyword.hashCode()) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(keyword)) {
+                throw new IllegalArgumentException("Duplicate keyword " + keyword);
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = keyword;
+        limits[i] = fields;
+        slots[i] = slot;
+    }
+
+    private void rehash(int size) {
+        String[] oldKeys = keys;
+        int[] oldLimits = limits;
+        int[] oldSlots = slots;
+        keys = new String[size];
+        limits = new int[size];
+        slots = new int[size];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                insert(oldKeys[i], oldLimits[i], oldSlots[i]);
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Field offsets of the line being handled; valid only inside the handler. */
+    static final class Fields {
+        private static final int MAX = 8;
+
+        private String line;
+        private int keyLength;
+        private int count;
+        private final int[] starts = new int[MAX];
+        private final int[] ends = new int[MAX];
+
+        void parse(String line, int keyLength, char separator, int limit) {
+            // Clear the previous line's offsets so nothing can read past this one
+            for (int i = 0; i < count; i++) {
+                starts[i] = 0;
+                ends[i] = 0;
+            }
+            this.line = line;
+            this.keyLength = keyLength;
+            count = 0;
+            int n = line.length();
+            if (keyLength == n || limit == 0) {
+                return;
+            }
+            int pos = keyLength + 1;
+            while (count < limit - 1) {
+                int next = line.indexOf(separator, pos);
+                if (next < 0) {
+                    break;
+                }
+                starts[count] = pos;
+                ends[count++] = next;
+                pos = next + 1;
+            }
+            starts[count] = pos;
+            ends[count++] = n;
+        }
+
+        String line() {
+            return line;
+        }
+
+        String keyword() {
+            return line.substring(0, keyLength);
+        }
+
+        int count() {
+            return count;
+        }
+
+        /** Field {@code i}; throws if the line has fewer than {@code i + 1} fields. */
+        String get(int i) {
+            check(i);
+            return line.substring(starts[i], ends[i]);
+        }
+
+        int length(int i) {
+            check(i);
+            return ends[i] - starts[i];
+        }
+
+        boolean is(int i, String value) {
+            return i < count && length(i) == value.length() && line.startsWith(value, starts[i]);
+        }
+
+        /** Field {@code i} as a non-negative decimal number, or -1 if it is missing or not one. */
+        long number(int i) {
+            if (i >= count || length(i) == 0 || length(i) > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int k = starts[i]; k < ends[i]; k++) {
+                char c = line.charAt(k);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        private void check(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException("Field " + i + " of " + count + " in " + keyword());
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed image store. Every image routed through the server is kept
+ * once under its SHA-256 on disk ({@code -Dchat.media.dir}, default
+ * {@code media}) with an LRU of recently used blobs in memory
+ * ({@code -Dchat.media.cacheBytes}). Clients that advertise {@link #CAP_MEDIA}
+ * get {@code IMAGE_REF:<hash>:<size>:<G|P|E>:<peer>} instead of the bytes and
+ * fetch them with {@code MEDIA_GET:<hash>} only if they have not seen the image
+ * before; they can also re-share a known image with
+ * {@code IMG_REF:<hash>:<G|P>:<recipient>} without uploading it again.
+ *
+ * <p>Which hashes are on disk is known in memory (listed once at startup),
+ * so storing and looking up never touch the disk on a routing thread. Images
+ * that have dropped out of the cache are read back on the {@code media-reader}
+ * thread with {@link #fetch} or {@link #read}.
+ */
+final class MediaStore {
+    static final String CAP_MEDIA = "media";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path dir;
+    private final long cacheBytes;
+
+    // Access-ordered; guarded by this
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    // Written to the cache but not yet to disk, so eviction can't lose them
+    private final Map<String, byte[]> unwritten = new ConcurrentHashMap<>();
+    // Everything written to disk, by this run or an earlier one
+    private final Set<String> onDisk = ConcurrentHashMap.newKeySet();
+    private final ExecutorService diskWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "media-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService diskReader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "media-reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong refBytes = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+
+    MediaStore() {
+        this(Paths.get(System.getProperty("chat.media.dir", "media")),
+                Long.getLong("chat.media.cacheBytes", 64L * 1024 * 1024));
+    }
+
+    MediaStore(Path dir, long cacheBytes) {
+        this.dir = dir;
+        this.cacheBytes = cacheBytes;
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.walk(dir, 2)) {
+                files.map(file -> file.getFileName().toString()).filter(MediaStore::isHash).forEach(onDisk::add);
+            } catch (IOException e) {
+                System.err.println("[media] could not list " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Lowercase hex SHA-256 of the bytes; also used by the client to name its uploads. */
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE ships SHA-256
+        }
+    }
+
+    static boolean isHash(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Stores an image unless an identical one is already here; returns its hash. */
+    String put(ImageData image) {
+        byte[] bytes = image.bytes();
+        String hash = hash(bytes);
+        if (contains(hash)) {
+            recordReuse(bytes.length);
+            return hash;
+        }
+        cache(hash, bytes);
+        unwritten.put(hash, bytes);
+        stored.incrementAndGet();
+        diskWriter.execute(() -> write(hash, bytes));
+        return hash;
+    }
+
+    /**
+     * Calls {@code then} with the image, or with null if it is unknown: right
+     * away if it is in memory, else on the reader thread once it is read.
+     */
+    void fetch(String hash, Consumer<ImageData> then) {
+        if (!contains(hash)) {
+            then.accept(null);
+            return;
+        }
+        ImageData image = cached(hash);
+        if (image != null) {
+            then.accept(image);
+        } else {
+            diskReader.execute(() -> then.accept(get(hash)));
+        }
+    }
+
+    /** Runs {@code task} on the reader thread, where {@link #get} may read the disk. */
+    void read(Runnable task) {
+        diskReader.execute(task);
+    }
+
+    /** The image if it is in memory, or null; never touches the disk. */
+    ImageData cached(String hash) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        byte[] bytes;
+        synchronized (this) {
+            bytes = cache.get(hash);
+        }
+        if (bytes == null) {
+            bytes = unwritten.get(hash);
+        }
+        return bytes == null ? null : ImageData.ofBytes(bytes);
+    }
+
+    /**
+     * The image with this hash, or null if unknown. Blocks on a disk read if
+     * it is not in memory, so it belongs on the reader thread; see {@link #fetch}.
+     */
+    ImageData get(String hash) {
+        ImageData image = cached(hash);
+        if (image != null || !onDisk.contains(hash)) {
+            return image;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path(hash));
+        } catch (IOException e) {
+            onDisk.remove(hash);
+            return null;
+        }
+        Metrics.MEDIA_DISK_READS.increment();
+        cache(hash, bytes);
+        return ImageData.ofBytes(bytes);
+    }
+
+    boolean contains(String hash) {
+        if (!isHash(hash)) {
+            return false;
+        }
+        synchronized (this) {
+            if (cache.containsKey(hash)) {
+                return true;
+            }
+        }
+        return unwritten.containsKey(hash) || onDisk.contains(hash);
+    }
+
+    long stored() {
+        return stored.get();
+    }
+
+    /** Image bytes that went out as a reference but were never fetched (the client had them). */
+    long bytesNotSent() {
+        // A fetch after a restart may be of a reference sent before it
+        return Math.max(0, refBytes.get() - fetchedBytes.get());
+    }
+
+    /** Share of image sends that were already in the store. */
+    double hitRate() {
+        long hits = Metrics.MEDIA_REUSED.get();
+        long total = hits + stored.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Counts an image that was sent again, by upload or by {@code IMG_REF}, but stored once. */
+    void recordReuse(int size) {
+        Metrics.MEDIA_REUSED.increment();
+        Metrics.MEDIA_BYTES_SAVED.add(size);
+    }
+
+    void recordRefSent(int size) {
+        refBytes.addAndGet(size);
+    }
+
+    void recordFetch(int size) {
+        fetchedBytes.addAndGet(size);
+    }
+
+    private synchronized void cache(String hash, byte[] bytes) {
+        if (bytes.length > cacheBytes || cache.containsKey(hash)) {
+            return;
+        }
+        cache.put(hash, bytes);
+        cachedBytes += bytes.length;
+        Iterator<byte[]> eldest = cache.values().iterator();
+        while (cachedBytes > cacheBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    private void write(String hash, byte[] bytes) {
+        Path target = path(hash);
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+            Files.write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[media] could not store " + hash + ": " + e.getMessage());
+            return; // stays in unwritten, so it is still served until restart
+        }
+        onDisk.add(hash);
+        unwritten.remove(hash);
+    }
+
+    // media/ab/abcdef..., so no directory grows past a few thousand entries
+    private Path path(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+}
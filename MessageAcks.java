@@ -0,0 +1,130 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery acknowledgements for clients that offer {@value #CAP_ACKS}. Such a
+ * client sends each chat message as {@code MSG_ID:<id>:<line>}, with an id of
+ * its own that it never reuses, and keeps it until the server answers
+ * {@code ACK:<id>:<seq>}, where {@code seq} numbers the messages this server
+ * accepted in the order it took them. Whatever is still unacked when the
+ * connection drops is sent again, with the same ids, once the client is back.
+ *
+ * <p>The last {@code -Dchat.acks.window} (256) ids of each of the
+ * {@code -Dchat.acks.users} (10000) most recently active users are kept, so
+ * a resent id is acked again with its original number instead of being
+ * delivered twice; clients keep fewer than that unacked. The window lives on
+ * the node the user was connected to, so one who comes back on another node
+ * may see a resent message twice.
+ *
+ * <p>Each login also gets {@code RESUME:<token>}. Logging in again with
+ * {@code RESUME:<token>:<name>} instead of {@code USERNAME:<name>} takes the
+ * name over from that user's previous connection if the server has not yet
+ * noticed it is dead.
+ */
+final class MessageAcks {
+    static final String CAP_ACKS = "acks";
+    static final int WINDOW = Math.max(16, Integer.getInteger("chat.acks.window", 256));
+    private static final int USERS = Math.max(1, Integer.getInteger("chat.acks.users", 10_000));
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+
+    // Access-ordered, so the users heard from least recently go first; guarded by this
+    private final Map<String, Window> windows = new LinkedHashMap<String, Window>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+            return size() > USERS;
+        }
+    };
+
+    /** One user's most recent ids, in arrival order until full, then overwritten oldest first. */
+    private static final class Window {
+        String token;
+        long[] ids = new long[16];
+        long[] seqs = new long[16];
+        int size;
+        int oldest; // once full: the slot the next id replaces
+    }
+
+    /**
+     * Takes {@code id} from {@code user}: returns a fresh sequence number if
+     * the id is new, or minus the number it was first acked with if it is a
+     * resend. Called before the message is routed, so a resend that overtakes
+     * the original's routing is still caught.
+     */
+    long accept(String user, long id) {
+        Window window = window(user);
+        synchronized (window) {
+            for (int i = 0; i < window.size; i++) {
+                if (window.ids[i] == id) {
+                    return -window.seqs[i];
+                }
+            }
+            long seq = sequence.incrementAndGet();
+            int slot;
+            if (window.size < window.ids.length) {
+                slot = window.size++;
+            } else if (window.ids.length < WINDOW) {
+                int grown = Math.min(WINDOW, window.ids.length * 2);
+                window.ids = Arrays.copyOf(window.ids, grown);
+                window.seqs = Arrays.copyOf(window.seqs, grown);
+                slot = window.size++;
+            } else {
+                slot = window.oldest;
+                window.oldest = (slot + 1) % window.ids.length;
+            }
+            window.ids[slot] = id;
+            window.seqs[slot] = seq;
+            return seq;
+        }
+    }
+
+    /** A new resume token for {@code user}'s login; it replaces the one handed out before. */
+    String issueToken(String user) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        String token = new String(hex);
+        Window window = window(user);
+        synchronized (window) {
+            window.token = token;
+        }
+        return token;
+    }
+
+    /** True if {@code token} is the one {@code user} was given at their last login. */
+    boolean resumes(String user, String token) {
+        Window window;
+        synchronized (this) {
+            window = windows.get(user);
+        }
+        if (window == null) {
+            return false;
+        }
+        synchronized (window) {
+            return window.token != null && window.token.equals(token);
+        }
+    }
+
+    /** Messages accepted so far; also the last sequence number handed out. */
+    long accepted() {
+        return sequence.get();
+    }
+
+    synchronized int users() {
+        return windows.size();
+    }
+
+    private synchronized Window window(String user) {
+        return windows.computeIfAbsent(user, u -> new Window());
+    }
+}
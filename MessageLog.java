@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only chat history in memory-mapped segment files under
+ * {@code -Dchat.log.dir} (default {@code history}). Appending copies the record
+ * into the mapped segment and returns; a background flusher forces dirty pages
+ * to disk every {@code -Dchat.log.flushMs} (default 50), so one fsync covers
+ * every message of that interval. A full segment ({@code -Dchat.log.segmentBytes},
+ * default 64 MB) is sealed and a new one started; only the newest
+ * {@code -Dchat.log.retainSegments} (default 8) are kept.
+ *
+ * <p>Record layout, after which the next record starts:
+ * <pre>
+ *   length:4  crc32:4  seq:8  time:8  kind:1  from:2+n  to:2+n  body:4+n
+ * </pre>
+ * {@code length} and {@code crc32} cover everything after the crc. A zero
+ * length or bad crc marks the end of the log, which is how an unclean shutdown
+ * is recovered: the torn tail of the last segment is simply overwritten.
+ */
+final class MessageLog {
+    static final byte KIND_GROUP = 1;
+    static final byte KIND_PRIVATE = 2;
+    static final byte KIND_GROUP_IMAGE = 3;   // body is a MediaStore hash
+    static final byte KIND_PRIVATE_IMAGE = 4; // body is a MediaStore hash
+
+    /** One logged message. For group kinds {@code to} is the conversation, e.g. "All". */
+    static final class Entry {
+        final long seq;
+        final long time;
+        final byte kind;
+        final String from;
+        final String to;
+        final String body;
+
+        Entry(long seq, long time, byte kind, String from, String to, String body) {
+            this.seq = seq;
+            this.time = time;
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+    }
+
+    private static final int FRAME_BYTES = 8; // length + crc
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int retainSegments;
+
+    // Guarded by this. Oldest first; the last one is being appended to.
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private long nextSeq;
+    private final List<Segment> sealed = new ArrayList<>(); // waiting for their final force
+
+    private long durableSeq; // flusher thread only, after recovery
+    private volatile LongConsumer retentionListener;
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final ScheduledExecutorService flusher;
+
+    MessageLog() throws IOException {
+        this(Paths.get(System.getProperty("chat.log.dir", "history")),
+                Integer.getInteger("chat.log.segmentBytes", 64 * 1024 * 1024),
+                Integer.getInteger("chat.log.retainSegments", 8),
+                Long.getLong("chat.log.flushMs", 50));
+    }
+
+    MessageLog(Path dir, int segmentBytes, int retainSegments, long flushMs) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = Math.max(1, retainSegments);
+        Files.createDirectories(dir);
+        recover();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "history-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends one message and returns its sequence number, or -1 if it is too
+     * large to log. Never touches the disk; it is durable once the flusher
+     * has forced the segment, within {@code -Dchat.log.flushMs}.
+     */
+    long append(byte kind, String from, String to, String body) {
+        byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+        byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 1 + 2 + fromBytes.length + 2 + toBytes.length + 4 + bodyBytes.length;
+        if (FRAME_BYTES + length > segmentBytes / 2 || fromBytes.length > 0xffff || toBytes.length > 0xffff) {
+            return -1;
+        }
+        long time = System.currentTimeMillis();
+        synchronized (this) {
+            if (active.buffer.remaining() < FRAME_BYTES + length && !roll()) {
+                return -1;
+            }
+            long seq = nextSeq++;
+            ByteBuffer buffer = active.buffer;
+            int start = buffer.position();
+            buffer.position(start + FRAME_BYTES);
+            buffer.putLong(seq).putLong(time).put(kind);
+            buffer.putShort((short) fromBytes.length).put(fromBytes);
+            buffer.putShort((short) toBytes.length).put(toBytes);
+            buffer.putInt(bodyBytes.length).put(bodyBytes);
+            buffer.putInt(start, length);
+            buffer.putInt(start + 4, crc(buffer, start + FRAME_BYTES, length));
+            active.add(start);
+            appends.incrementAndGet();
+            return seq;
+        }
+    }
+
+    long appends() {
+        return appends.get();
+    }
+
+    /** Number of fsyncs; appends / forces is the group-commit batch size. */
+    long forces() {
+        return forces.get();
+    }
+
+    /** Calls {@code listener} with the new {@link #firstSequence()} whenever retention drops segments. */
+    void onRetention(LongConsumer listener) {
+        retentionListener = listener;
+    }
+
+    /** Oldest sequence number still retained. */
+    synchronized long firstSequence() {
+        return segments.get(0).baseSeq;
+    }
+
+    /**
+     * The record with this sequence number, or null if it was never written or
+     * has aged out. Each segment keeps the offset of every record it holds, so
+     * this is a binary search and one decode regardless of log size.
+     */
+    Entry read(long seq) {
+        ByteBuffer buffer;
+        int offset;
+        synchronized (this) {
+            Segment segment = segmentFor(seq);
+            if (segment == null) {
+                return null;
+            }
+            buffer = segment.buffer.duplicate();
+            offset = segment.offsets[(int) (seq - segment.baseSeq)];
+        }
+        // Written records never change, so decoding needs no lock
+        return decode(buffer, offset);
+    }
+
+    /** Reads every retained record, oldest first. */
+    void scan(Consumer<Entry> consumer) {
+        long first;
+        long end;
+        synchronized (this) {
+            first = segments.get(0).baseSeq;
+            end = nextSeq;
+        }
+        for (long seq = first; seq < end; seq++) {
+            Entry entry = read(seq);
+            if (entry != null) { // null only if retention removed it meanwhile
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    // ─── Internals ───────────────────────────────────────────────────────────
+    private void recover() throws IOException {
+        List<Path> files = segmentFiles();
+        if (files.isEmpty()) {
+            nextSeq = 1;
+            active = openSegment(1);
+            segments.add(active);
+            return;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            Segment segment;
+            if (i == files.size() - 1) {
+                segment = openSegment(baseSeq(file));
+            } else {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    segment = new Segment(baseSeq(file), file,
+                            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+            }
+            segment.buffer.position(indexRecords(segment));
+            segments.add(segment);
+            active = segment;
+        }
+        nextSeq = active.baseSeq + active.count;
+        durableSeq = nextSeq - 1;
+        System.out.println("[history] recovered " + files.size() + " segment(s), next message #" + nextSeq);
+    }
+
+    // Records the offset of every intact record; returns the position after the last one
+    private static int indexRecords(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (buffer.limit() - position >= FRAME_BYTES) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.limit() - position - FRAME_BYTES
+                    || buffer.getInt(position + 4) != crc(buffer, position + FRAME_BYTES, length)) {
+                break;
+            }
+            segment.add(position);
+            position += FRAME_BYTES + length;
+        }
+        return position;
+    }
+
+    private static Entry decode(ByteBuffer buffer, int position) {
+        buffer.position(position + FRAME_BYTES);
+        long seq = buffer.getLong();
+        long time = buffer.getLong();
+        byte kind = buffer.get();
+        String from = string(buffer, buffer.getShort() & 0xffff);
+        String to = string(buffer, buffer.getShort() & 0xffff);
+        String body = string(buffer, buffer.getInt());
+        return new Entry(seq, time, kind, from, to, body);
+    }
+
+    // Called with the lock held
+    private Segment segmentFor(long seq) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (seq < segment.baseSeq) {
+                high = mid - 1;
+            } else if (seq >= segment.baseSeq + segment.count) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    // Called with the lock held. On failure the message goes unlogged rather than undelivered.
+    private boolean roll() {
+        Segment next;
+        try {
+            next = openSegment(nextSeq);
+        } catch (IOException e) {
+            System.err.println("[history] cannot start a new segment: " + e.getMessage());
+            return false;
+        }
+        sealed.add(active);
+        segments.add(next);
+        active = next;
+        return true;
+    }
+
+    private Segment openSegment(long baseSeq) throws IOException {
+        Path path = dir.resolve(String.format("%020d", baseSeq) + SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping past the end grows the file; the zero fill marks where records stop
+            return new Segment(baseSeq, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    /** Group commit: one force per interval for everything appended since the last one. */
+    private void flush() {
+        List<Segment> toForce = new ArrayList<>();
+        long upTo;
+        synchronized (this) {
+            toForce.addAll(sealed);
+            sealed.clear();
+            upTo = nextSeq - 1;
+            if (upTo > durableSeq) {
+                toForce.add(active);
+            }
+        }
+        if (toForce.isEmpty()) {
+            return;
+        }
+        for (Segment segment : toForce) {
+            segment.buffer.force();
+            forces.incrementAndGet();
+        }
+        durableSeq = upTo;
+        if (toForce.size() > 1) {
+            enforceRetention();
+        }
+    }
+
+    private void enforceRetention() {
+        List<Segment> expired = new ArrayList<>();
+        synchronized (this) {
+            while (segments.size() > retainSegments) {
+                expired.add(segments.remove(0));
+            }
+        }
+        for (Segment segment : expired) {
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("[history] retention failed: " + e.getMessage());
+            }
+        }
+        LongConsumer listener = retentionListener;
+        if (!expired.isEmpty() && listener != null) {
+            listener.accept(firstSequence());
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); // zero-padded names sort by base sequence
+        return files;
+    }
+
+    private static long baseSeq(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // Offset of record baseSeq + i; sequence numbers within a segment are dense
+        int[] offsets = new int[1024];
+        int count;
+
+        Segment(long baseSeq, Path path, MappedByteBuffer buffer) {
+            this.baseSeq = baseSeq;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        void add(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot-path counters and latency histograms. Recording never takes a lock:
+ * counters are {@link LongAdder}s and histograms are striped bucket arrays,
+ * so event loops and handler threads don't contend on a shared cache line.
+ * Read with the admin-only {@code /stats} command ({@code -Dchat.admins=a,b};
+ * {@code /stats gc} collects garbage first, so {@code heapUsed} is what is live)
+ * or the {@code [stats]} log snapshot every {@code -Dchat.stats.logSeconds}
+ * (default 60, 0 disables).
+ *
+ * <p>Stages: {@code parse} is decoding one read into lines on the NIO engine
+ * (the blocking engine decodes while it waits on the socket, so it has no
+ * separate figure); {@code route} is handling one inbound message, from the
+ * parsed line until every recipient queue has it; {@code fanout} is the
+ * enqueue loop of a group or room send, with its size in
+ * {@code recipients}; {@code write} is one socket write, which may carry
+ * several queued messages ({@code messagesOut}). On compressed
+ * connections {@code deflate} is compressing one batch of outbound messages
+ * and {@code inflate} decompressing one read.
+ */
+final class Metrics {
+    static final Counter ACCEPTED = new Counter("accepted");
+    static final Counter LOGINS = new Counter("logins");
+    static final Counter MESSAGES_IN = new Counter("messagesIn");
+    static final Counter MESSAGES_OUT = new Counter("messagesOut");
+    static final Counter BYTES_OUT = new Counter("bytesOut");
+    static final Counter DROPPED = new Counter("dropped");
+    static final Counter RATE_THROTTLED = new Counter("rateThrottled");
+    static final Counter RATE_DROPPED = new Counter("rateDropped");
+    static final Counter FLOOD_DISCONNECTS = new Counter("floodDisconnects");
+    static final Counter DEFLATE_IN = new Counter("deflateIn");
+    static final Counter DEFLATE_OUT = new Counter("deflateOut");
+    static final Counter INFLATE_IN = new Counter("inflateIn");
+    static final Counter INFLATE_OUT = new Counter("inflateOut");
+    static final Counter PINGS = new Counter("pings");
+    static final Counter IDLE_REAPED = new Counter("idleReaped");
+    static final Counter RESENDS = new Counter("resends");
+    static final Counter RESUMED = new Counter("resumed");
+    static final Counter MEDIA_REUSED = new Counter("mediaReused");
+    static final Counter MEDIA_BYTES_SAVED = new Counter("mediaBytesSaved");
+    static final Counter MEDIA_DISK_READS = new Counter("mediaDiskReads");
+
+    static final Histogram PARSE = new Histogram("parse", true);
+    static final Histogram ROUTE = new Histogram("route", true);
+    static final Histogram FANOUT = new Histogram("fanout", true);
+    static final Histogram RECIPIENTS = new Histogram("recipients", false);
+    static final Histogram WRITE = new Histogram("write", true);
+    static final Histogram DEFLATE = new Histogram("deflate", true);
+    static final Histogram INFLATE = new Histogram("inflate", true);
+    static final Histogram THUMBNAIL = new Histogram("thumbnail", true);
+
+    private static final long STARTED = System.nanoTime();
+
+    private Metrics() {
+    }
+
+    /** Monotonic count, striped across threads. */
+    static final class Counter {
+        final String name;
+        private final LongAdder adder = new LongAdder();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        void increment() {
+            adder.increment();
+        }
+
+        void add(long n) {
+            adder.add(n);
+        }
+
+        long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Log-linear histogram in the style of HdrHistogram: values below 8 are
+     * exact, above that each power of two is split into 8 buckets, so any
+     * percentile is within 12.5% of the true value. Values are nanoseconds,
+     * or plain counts when not {@code timed}.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int BUCKETS = 64 << SUB_BITS;
+        private static final int STRIPES = 8; // power of two
+
+        final String name;
+        private final boolean timed;
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        Histogram(String name, boolean timed) {
+            this.name = name;
+            this.timed = timed;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int stripe = Thread.currentThread().hashCode() & (STRIPES - 1);
+            stripes[stripe].incrementAndGet(index(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /** Records the time since {@code startNanos}. */
+        void since(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        long count() {
+            long total = 0;
+            for (long n : merged()) {
+                total += n;
+            }
+            return total;
+        }
+
+        /** Lower bound of the bucket holding the given fraction of values; 0 if empty. */
+        long percentile(double fraction) {
+            long[] merged = merged();
+            long total = 0;
+            for (long n : merged) {
+                total += n;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += merged[i];
+                if (seen >= rank && seen > 0) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private long[] merged() {
+            long[] merged = new long[BUCKETS];
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    merged[i] += stripe.get(i);
+                }
+            }
+            return merged;
+        }
+
+        String describe() {
+            long n = count();
+            if (n == 0) {
+                return name + " n=0";
+            }
+            return name + " n=" + n + " mean=" + format(sum.sum() / n) + " p50=" + format(percentile(0.50))
+                    + " p99=" + format(percentile(0.99)) + " p999=" + format(percentile(0.999))
+                    + " max=" + format(max.get());
+        }
+
+        private String format(long value) {
+            return timed ? String.format("%.1fus", value / 1000.0) : Long.toString(value);
+        }
+
+        static int index(long value) {
+            if (value < (1 << SUB_BITS)) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        static long lowerBound(int index) {
+            if (index < (1 << SUB_BITS)) {
+                return index;
+            }
+            int exponent = (index >> SUB_BITS) + SUB_BITS - 1;
+            long sub = index & ((1 << SUB_BITS) - 1);
+            return (1L << exponent) | (sub << (exponent - SUB_BITS));
+        }
+    }
+
+    /** One line per counter group and stage; sent by {@code /stats} and logged periodically. */
+    static List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        double seconds = Math.max(1, (System.nanoTime() - STARTED) / 1e9);
+        int sessions = 0;
+        int loggedIn = 0;
+        long queued = 0;
+        int deepest = 0;
+        for (ChatSession session : AppServer.sessions) {
+            sessions++;
+            if (session.isLoggedIn()) {
+                loggedIn++;
+            }
+            int depth = session.getOutbound().depth();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        lines.add(String.format("uptime=%.0fs connections=%d users=%d accepted=%d logins=%d",
+                seconds, sessions, loggedIn, ACCEPTED.get(), LOGINS.get()));
+        lines.add(String.format("messagesIn=%d (%.1f/s) bytesOut=%d (%.1f KB/s) dropped=%d queued=%d maxQueue=%d",
+                MESSAGES_IN.get(), MESSAGES_IN.get() / seconds, BYTES_OUT.get(), BYTES_OUT.get() / seconds / 1024,
+                DROPPED.get(), queued, deepest));
+        lines.add(String.format("messagesOut=%d (%.1f/s) writes=%d (%.2f per message)",
+                MESSAGES_OUT.get(), MESSAGES_OUT.get() / seconds, WRITE.count(),
+                WRITE.count() / (double) Math.max(1, MESSAGES_OUT.get())));
+        lines.add(jvm());
+        lines.add(String.format("rate throttled=%d dropped=%d floodDisconnects=%d",
+                RATE_THROTTLED.get(), RATE_DROPPED.get(), FLOOD_DISCONNECTS.get()));
+        if (Heartbeat.ENABLED) {
+            lines.add(String.format("heartbeat pings=%d idleReaped=%d timers=%d",
+                    PINGS.get(), IDLE_REAPED.get(), Heartbeat.WHEEL.size()));
+        }
+        lines.add(String.format("presence events=%d updates=%d coalesced=%d",
+                AppServer.presence.eventsReceived(), AppServer.presence.windowsPublished(),
+                AppServer.presence.eventsCoalesced()));
+        lines.add(String.format("acks accepted=%d resendsDropped=%d resumed=%d windows=%d",
+                AppServer.acks.accepted(), RESENDS.get(), RESUMED.get(), AppServer.acks.users()));
+        for (Histogram stage : new Histogram[] {PARSE, ROUTE, FANOUT, RECIPIENTS, WRITE}) {
+            lines.add(stage.describe());
+        }
+        if (Compression.ENABLED) {
+            lines.add(String.format("compression out=%d->%d bytes (%s) in=%d->%d bytes (%s)",
+                    DEFLATE_IN.get(), DEFLATE_OUT.get(), saved(DEFLATE_IN.get(), DEFLATE_OUT.get()),
+                    INFLATE_OUT.get(), INFLATE_IN.get(), saved(INFLATE_OUT.get(), INFLATE_IN.get())));
+            lines.add(DEFLATE.describe());
+            lines.add(INFLATE.describe());
+        }
+        if (AppServer.history != null) {
+            lines.add("history appends=" + AppServer.history.appends() + " forces=" + AppServer.history.forces());
+        }
+        lines.add(String.format("media stored=%d dedupHits=%d hitRate=%.0f%% notStoredAgain=%.1fMB"
+                + " notSentToCachedClients=%.1fMB diskReads=%d",
+                AppServer.media.stored(), MEDIA_REUSED.get(), AppServer.media.hitRate() * 100,
+                MEDIA_BYTES_SAVED.get() / (1024.0 * 1024), AppServer.media.bytesNotSent() / (1024.0 * 1024),
+                MEDIA_DISK_READS.get()));
+        lines.add(String.format("thumbnails made=%d cacheHits=%d rejected=%d",
+                AppServer.thumbnails.made(), AppServer.thumbnails.cacheHits(), AppServer.thumbnails.rejected()));
+        lines.add(THUMBNAIL.describe());
+        if (AppServer.cluster != null) {
+            lines.add("cluster remoteUsers=" + AppServer.cluster.users().size() + " relayed=" + AppServer.cluster.relayed());
+        }
+        return lines;
+    }
+
+    private static String jvm() {
+        return String.format("jvm threads=%d heapUsed=%dKB",
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024);
+    }
+
+    private static String saved(long plain, long compressed) {
+        return plain == 0 ? "-" : String.format("%.0f%% saved", (1 - compressed / (double) plain) * 100);
+    }
+
+    static void startLogging(int periodSeconds) {
+        if (periodSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            for (String line : snapshot()) {
+                System.out.println("[stats] " + line);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector-based server engine. One acceptor thread hands each new channel to
+ * one of a small, fixed set of event loops; every loop multiplexes its
+ * connections with non-blocking reads and writes. The wire protocol is the
+ * same one the blocking {@link ClientHandler} speaks: newline-delimited text,
+ * or {@link FrameCodec} frames once a client negotiates them.
+ */
+class NioChatServer {
+    /** Longest inbound line we will buffer; base64 images make lines large. */
+    static final int MAX_LINE_BYTES = Integer.getInteger("chat.nio.maxLineBytes", 32 * 1024 * 1024);
+    private static final Charset CHARSET = EncodedMessage.CHARSET;
+    /** Most queued messages handed to a single gathering write. */
+    private static final int GATHER = 64;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioChatServer(int port, int loopCount) {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("Server is ready to accept connections ("
+                    + loops.length + " event loops)...");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                Metrics.ACCEPTED.increment();
+                System.out.println("New client connected: " + channel.socket().getInetAddress());
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    // ─── Event loop ──────────────────────────────────────────────────────────
+    private static final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        /** Inflated input of compressed connections; parsed before the next inflate. */
+        private final ByteBuffer plainBuffer = ByteBuffer.allocate(64 * 1024);
+        /** Connections the rate limiter has stopped reading; loop thread only. */
+        private final List<NioConnection> paused = new ArrayList<>();
+        /** Connections waiting out {@code flushDelayMs} before their next write; loop thread only. */
+        private final List<NioConnection> lingering = new ArrayList<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(untilNextTimer());
+                    registerPending();
+                    flushPending();
+                    flushLingering();
+                    resumeDue();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.closeChannel();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.closeChannel();
+                        } catch (RuntimeException e) {
+                            failed(connection, e);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * A bug in handling one connection's input must not end the loop and
+         * strand every other connection on it, so only that connection is dropped.
+         */
+        private static void failed(NioConnection connection, RuntimeException e) {
+            System.err.println("Closing connection of '" + connection.session.getUsername() + "' after an error: " + e);
+            e.printStackTrace();
+            connection.closeChannel();
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().setKeepAlive(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(this, channel, key);
+                    key.attach(connection);
+                    AppServer.addSession(connection.session);
+                } catch (IOException e) {
+                    System.err.println("Failed to register client: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Select timeout in ms: until the first paused connection may read
+         * again or the first lingering one should write, or 0 (neither).
+         */
+        private long untilNextTimer() {
+            if (paused.isEmpty() && lingering.isEmpty()) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long earliest = Long.MAX_VALUE;
+            for (NioConnection connection : paused) {
+                earliest = Math.min(earliest, connection.resumeAt - now);
+            }
+            for (NioConnection connection : lingering) {
+                earliest = Math.min(earliest, connection.flushAt - now);
+            }
+            return Math.max(1, (earliest + 999_999) / 1_000_000);
+        }
+
+        private void resumeDue() {
+            long now = System.nanoTime();
+            // Backwards, since resuming may pause the same connection again (appending it)
+            for (int i = paused.size() - 1; i >= 0; i--) {
+                NioConnection connection = paused.get(i);
+                if (now - connection.resumeAt >= 0) {
+                    paused.remove(i);
+                    try {
+                        connection.resume();
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.closeChannel();
+                    } catch (RuntimeException e) {
+                        failed(connection, e);
+                    }
+                }
+            }
+        }
+
+        private void flushPending() {
+            NioConnection connection;
+            long now = OutboundQueue.FLUSH_DELAY_NANOS > 0 ? System.nanoTime() : 0;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (OutboundQueue.FLUSH_DELAY_NANOS > 0 && now - connection.flushAt < 0
+                        && !connection.closeRequested) {
+                    lingering.add(connection);
+                    continue;
+                }
+                try {
+                    connection.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.closeChannel();
+                } catch (RuntimeException e) {
+                    failed(connection, e);
+                }
+            }
+        }
+
+        private void flushLingering() {
+            long now = System.nanoTime();
+            for (int i = lingering.size() - 1; i >= 0; i--) {
+                NioConnection connection = lingering.get(i);
+                if (now - connection.flushAt >= 0 || connection.closeRequested) {
+                    lingering.remove(i);
+                    try {
+                        connection.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.closeChannel();
+                    } catch (RuntimeException e) {
+                        failed(connection, e);
+                    }
+                }
+            }
+        }
+    }
+
+    // ─── Connection ──────────────────────────────────────────────────────────
+    private static final class NioConnection implements ChatSession.Transport {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        final ChatSession session = new ChatSession(this);
+
+        private final OutboundQueue outbound = new OutboundQueue();
+        private final EncodedMessage[] batch = new EncodedMessage[GATHER];
+        private final ByteBuffer[] inFlight = new ByteBuffer[GATHER];
+        private int inFlightOffset;
+        private int inFlightCount;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean closeRequested;
+
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private final FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+        private boolean paused;
+        private long resumeAt;
+        /** When a scheduled write is due under {@code flushDelayMs}; set by whichever thread schedules it. */
+        private volatile long flushAt;
+        /** Input read before a pause that has not been parsed yet. */
+        private byte[] held;
+        private Compression.Decompressor decompressor;
+        private Compression.Compressor compressor;
+
+        NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /** Reads whatever is available and dispatches every complete line. */
+        void onReadable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (closeRequested) {
+                return; // Draining the last replies; ignore further input
+            }
+            if (n < 0) {
+                closeChannel();
+                return;
+            }
+            buffer.flip();
+            if (decompressor != null) {
+                inflate(buffer);
+            } else {
+                parse(buffer);
+            }
+        }
+
+        /** Inflates one read and parses the result, holding it instead while paused. */
+        private void inflate(ByteBuffer compressed) throws IOException {
+            decompressor.setInput(compressed);
+            ByteBuffer plain = loop.plainBuffer;
+            long inflating = 0;
+            while (!closeRequested && !closed.get()) {
+                long start = System.nanoTime();
+                int n = decompressor.inflate(plain);
+                inflating += System.nanoTime() - start;
+                if (n == 0) {
+                    break;
+                }
+                if (paused) {
+                    hold(plain);
+                } else {
+                    parse(plain);
+                }
+            }
+            Metrics.INFLATE.record(inflating);
+        }
+
+        /**
+         * Dispatches every complete line or frame in {@code buffer}, stopping
+         * early if a message pauses reading; the rest is kept for {@link #resume}.
+         */
+        private void parse(ByteBuffer buffer) throws IOException {
+            long start = System.nanoTime();
+            long dispatching = 0; // time spent handling messages, which is not parsing
+            while (buffer.hasRemaining()) {
+                // The mode can flip mid-buffer, right after the HELLO line
+                if (session.isBinary()) {
+                    FrameCodec.Frame frame = decoder.next(buffer);
+                    if (frame != null) {
+                        long dispatched = System.nanoTime();
+                        boolean keep = session.isActive() && session.onFrame(frame);
+                        dispatching += System.nanoTime() - dispatched;
+                        if (!keep) {
+                            close();
+                            return;
+                        }
+                        if (paused) {
+                            hold(buffer);
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String message = new String(line, 0, end, CHARSET);
+                    lineLength = 0;
+                    long dispatched = System.nanoTime();
+                    boolean keep = dispatch(message);
+                    dispatching += System.nanoTime() - dispatched;
+                    if (!keep) {
+                        close();
+                        return;
+                    }
+                    if (paused) {
+                        hold(buffer);
+                        break;
+                    }
+                    // Everything after the HELLO line is deflated, starting mid-buffer
+                    if (decompressor == null && session.isCompressed()) {
+                        decompressor = new Compression.Decompressor();
+                        dispatched = System.nanoTime();
+                        inflate(buffer);
+                        dispatching += System.nanoTime() - dispatched;
+                    }
+                } else {
+                    if (lineLength == line.length) {
+                        if (line.length >= MAX_LINE_BYTES) {
+                            send(EncodedMessage.of("ERROR:Message too large."));
+                            close();
+                            return;
+                        }
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_BYTES));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            Metrics.PARSE.record(System.nanoTime() - start - dispatching);
+            // Don't keep a multi-megabyte buffer around after an image has passed through
+            if (lineLength == 0 && line.length > 64 * 1024) {
+                line = new byte[256];
+            }
+        }
+
+        /** Keeps the unparsed rest of {@code buffer}, after anything already held. */
+        private void hold(ByteBuffer buffer) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            int before = held == null ? 0 : held.length;
+            if (before + buffer.remaining() > MAX_LINE_BYTES) {
+                send(EncodedMessage.of("ERROR:Message too large."));
+                close();
+                return;
+            }
+            held = held == null ? new byte[buffer.remaining()] : Arrays.copyOf(held, before + buffer.remaining());
+            buffer.get(held, before, held.length - before);
+        }
+
+        /** Stops selecting for reads until the deadline; the loop calls {@link #resume}. */
+        @Override
+        public void pauseReading(long nanos) {
+            long at = System.nanoTime() + nanos;
+            if (paused) {
+                resumeAt = Math.max(resumeAt, at);
+                return;
+            }
+            if (!key.isValid()) {
+                return;
+            }
+            paused = true;
+            resumeAt = at;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.paused.add(this);
+        }
+
+        /** Parses what was held back, then reads again unless that paused us anew. */
+        void resume() throws IOException {
+            paused = false;
+            if (closed.get() || closeRequested) {
+                held = null;
+                return;
+            }
+            if (held != null) {
+                ByteBuffer rest = ByteBuffer.wrap(held);
+                held = null;
+                parse(rest);
+            }
+            if (!paused && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private boolean dispatch(String message) {
+            return session.isActive() && session.onLine(message);
+        }
+
+        /**
+         * Writes queued messages until the socket would block, gathering up to
+         * {@link #GATHER} shared buffers into each write call. Event-loop thread only.
+         */
+        void flush() throws IOException {
+            writeScheduled.set(false);
+            while (true) {
+                if (inFlightCount == 0) {
+                    int n = outbound.pollBatch(batch);
+                    if (n == 0) {
+                        break;
+                    }
+                    Metrics.MESSAGES_OUT.add(n);
+                    inFlightOffset = 0;
+                    inFlightCount = gather(n);
+                }
+                long start = System.nanoTime();
+                long written = channel.write(inFlight, inFlightOffset, inFlightCount - inFlightOffset);
+                Metrics.WRITE.since(start);
+                Metrics.BYTES_OUT.add(written);
+                while (inFlightOffset < inFlightCount && !inFlight[inFlightOffset].hasRemaining()) {
+                    inFlight[inFlightOffset++] = null;
+                }
+                if (inFlightOffset < inFlightCount) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                inFlightCount = 0;
+            }
+            if (closeRequested) {
+                closeChannel();
+            } else if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Moves the polled batch into {@link #inFlight}: shared buffers as they
+         * are, or one deflated block once compression has started (right after
+         * HELLO_OK, which may be mid-batch). Returns the buffer count.
+         */
+        private int gather(int n) {
+            int count = 0;
+            int i = 0;
+            while (compressor == null && i < n) {
+                EncodedMessage message = batch[i];
+                batch[i++] = null;
+                inFlight[count++] = message.buffer(session.isBinary());
+                if (message.isTextOnly() && session.isCompressed()) {
+                    compressor = new Compression.Compressor();
+                }
+            }
+            if (i < n) {
+                compressor.trim();
+                for (; i < n; i++) {
+                    compressor.add(batch[i].bytes(session.isBinary()));
+                    batch[i] = null;
+                }
+                inFlight[count++] = compressor.take(true);
+            }
+            return count;
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                if (OutboundQueue.FLUSH_DELAY_NANOS > 0) {
+                    // Lingering lets messages queued meanwhile share the write
+                    flushAt = System.nanoTime() + OutboundQueue.FLUSH_DELAY_NANOS;
+                }
+                loop.requestWrite(this);
+            }
+        }
+
+        @Override
+        public void send(EncodedMessage message) {
+            if (closed.get() || closeRequested) {
+                return;
+            }
+            if (!outbound.offer(message)) {
+                System.out.println("Disconnecting slow consumer '" + session.getUsername() + "'");
+                closeChannel();
+                return;
+            }
+            scheduleWrite();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get() && !closeRequested;
+        }
+
+        /** Closes once everything already queued (e.g. a final ERROR line) is written. */
+        @Override
+        public void close() {
+            closeRequested = true;
+            scheduleWrite();
+        }
+
+        @Override
+        public void abort() {
+            closeChannel();
+        }
+
+        @Override
+        public OutboundQueue outbound() {
+            return outbound;
+        }
+
+        void closeChannel() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            outbound.clear();
+            AppServer.removeClient(session);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private messages and images held for users who are offline, delivered in one
+ * batch when they next log in. Each mailbox is bounded by
+ * {@code -Dchat.mailbox.maxMessages} (default 200) and
+ * {@code -Dchat.mailbox.maxBytes} (default 1 MB); images are held as
+ * {@link MediaStore} hashes, so they count only as a reference. Only names
+ * that have logged in before can receive mail. Mailboxes live in memory and
+ * do not survive a restart.
+ */
+final class OfflineMailbox {
+    static final String CAP_OFFLINE = "offline";
+    static final int MAX_MESSAGES = Integer.getInteger("chat.mailbox.maxMessages", 200);
+    static final long MAX_BYTES = Long.getLong("chat.mailbox.maxBytes", 1024 * 1024);
+
+    /** One held message; {@code body} is the text, or the image hash when {@code image}. */
+    static final class Mail {
+        final long id;
+        final String sender;
+        final String body;
+        final boolean image;
+
+        Mail(long id, String sender, String body, boolean image) {
+            this.id = id;
+            this.sender = sender;
+            this.body = body;
+            this.image = image;
+        }
+
+        int size() {
+            return sender.length() + body.length() + 16;
+        }
+    }
+
+    private static final class Box {
+        final ArrayDeque<Mail> mail = new ArrayDeque<>();
+        long bytes;
+        boolean drained; // removed from the map; offers must start a new box
+    }
+
+    private final Map<String, Box> boxes = new ConcurrentHashMap<>();
+    private final Set<String> knownUsers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong();
+
+    /** Marks a name as a real user that may be sent mail while away. */
+    void remember(String user) {
+        knownUsers.add(user);
+    }
+
+    boolean knows(String user) {
+        return knownUsers.contains(user);
+    }
+
+    /** Holds a message for {@code recipient}; returns its id, or -1 if the mailbox is full. */
+    long offer(String recipient, String sender, String body, boolean image) {
+        Mail mail = new Mail(nextId.incrementAndGet(), sender, body, image);
+        while (true) {
+            Box box = boxes.computeIfAbsent(recipient, r -> new Box());
+            synchronized (box) {
+                if (box.drained) {
+                    continue; // lost a race with drain()
+                }
+                if (box.mail.size() >= MAX_MESSAGES || box.bytes + mail.size() > MAX_BYTES) {
+                    return -1;
+                }
+                box.mail.add(mail);
+                box.bytes += mail.size();
+                return mail.id;
+            }
+        }
+    }
+
+    /** Removes and returns everything held for {@code recipient}, oldest first. */
+    List<Mail> drain(String recipient) {
+        Box box = boxes.remove(recipient);
+        if (box == null) {
+            return new ArrayList<>();
+        }
+        synchronized (box) {
+            box.drained = true;
+            return new ArrayList<>(box.mail);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded per-connection queue of encoded lines waiting to be written. Producers (any
+ * thread routing a message) never block on a slow reader; when the queue is
+ * full the configured {@link OverflowPolicy} decides what gives way.
+ *
+ * <p>Limits come from {@code -Dchat.outbound.capacity} (messages),
+ * {@code -Dchat.outbound.maxBytes} and {@code -Dchat.outbound.policy}
+ * ({@code drop-oldest}, {@code drop-images} or {@code disconnect}).
+ *
+ * <p>Writers coalesce whatever is queued into as few socket writes as they
+ * can: the blocking engine copies up to {@code -Dchat.outbound.flushBytes}
+ * (64 KB) into each write, the NIO engine gathers the queued buffers. With
+ * {@code -Dchat.outbound.flushDelayMs} above 0 a connection also lingers
+ * that long after its first queued message before writing, so messages that
+ * arrive in the meantime share the write; 0 (the default) writes as soon as
+ * the writer gets to it.
+ */
+final class OutboundQueue {
+
+    enum OverflowPolicy {
+        /** Evict the oldest queued message. */
+        DROP_OLDEST,
+        /** Evict the oldest queued image, falling back to the oldest message. */
+        DROP_IMAGES_FIRST,
+        /** Refuse the message; the caller disconnects the slow consumer. */
+        DISCONNECT;
+
+        static OverflowPolicy parse(String value) {
+            switch (value.toLowerCase()) {
+                case "drop-oldest":
+                    return DROP_OLDEST;
+                case "disconnect":
+                    return DISCONNECT;
+                default:
+                    return DROP_IMAGES_FIRST;
+            }
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final long DEFAULT_MAX_BYTES = Long.getLong("chat.outbound.maxBytes", 16L * 1024 * 1024);
+    static final OverflowPolicy DEFAULT_POLICY =
+            OverflowPolicy.parse(System.getProperty("chat.outbound.policy", "drop-images"));
+    static final int FLUSH_BYTES = Math.max(1024, Integer.getInteger("chat.outbound.flushBytes", 64 * 1024));
+    static final long FLUSH_DELAY_NANOS = Long.getLong("chat.outbound.flushDelayMs", 0) * 1_000_000;
+
+    private final int capacity;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+
+    private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+    private long queuedBytes;
+    private int peakDepth;
+    private long dropped;
+
+    OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_BYTES, DEFAULT_POLICY);
+    }
+
+    OutboundQueue(int capacity, long maxBytes, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a message, evicting older ones if the policy allows. Returns
+     * false only under {@link OverflowPolicy#DISCONNECT} when the queue is full.
+     */
+    synchronized boolean offer(EncodedMessage message) {
+        long size = message.length();
+        while (!messages.isEmpty()
+                && (messages.size() >= capacity || queuedBytes + size > maxBytes)) {
+            dropped++;
+            Metrics.DROPPED.increment();
+            if (policy == OverflowPolicy.DISCONNECT) {
+                return false;
+            }
+            evictOne();
+        }
+        messages.addLast(message);
+        queuedBytes += size;
+        peakDepth = Math.max(peakDepth, messages.size());
+        return true;
+    }
+
+    private void evictOne() {
+        if (policy == OverflowPolicy.DROP_IMAGES_FIRST) {
+            Iterator<EncodedMessage> it = messages.iterator();
+            while (it.hasNext()) {
+                EncodedMessage queued = it.next();
+                if (queued.isImage()) {
+                    it.remove();
+                    queuedBytes -= queued.length();
+                    return;
+                }
+            }
+        }
+        queuedBytes -= messages.removeFirst().length();
+    }
+
+    /** Moves up to {@code batch.length} messages into {@code batch}; returns how many. */
+    synchronized int pollBatch(EncodedMessage[] batch) {
+        int n = 0;
+        while (n < batch.length && !messages.isEmpty()) {
+            EncodedMessage message = messages.pollFirst();
+            queuedBytes -= message.length();
+            batch[n++] = message;
+        }
+        return n;
+    }
+
+    synchronized boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    synchronized int depth() {
+        return messages.size();
+    }
+
+    synchronized int peakDepth() {
+        return peakDepth;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    synchronized void clear() {
+        messages.clear();
+        queuedBytes = 0;
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects joins and leaves over a short window ({@code -Dchat.presence.windowMs},
+ * 0 to publish every event immediately) and hands {@link AppServer} the net
+ * change once per window. After a server restart hundreds of reconnects then
+ * cost one "joined" line and one roster update instead of one each.
+ */
+final class PresenceAggregator {
+    static final long WINDOW_MS = Long.getLong("chat.presence.windowMs", 200);
+
+    private final long windowMs;
+    private final ScheduledExecutorService timer;
+
+    // Latest state per name within the window: true = joined, false = left
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private final Set<ChatSession> joinedSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int windowEvents;
+    private boolean flushScheduled;
+
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong eventsCoalesced = new AtomicLong();
+    private final AtomicLong windowsPublished = new AtomicLong();
+
+    PresenceAggregator(long windowMs) {
+        this.windowMs = windowMs;
+        this.timer = windowMs <= 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-aggregator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void joined(ChatSession session) {
+        synchronized (this) {
+            pending.put(session.getUsername(), Boolean.TRUE);
+            joinedSessions.add(session);
+            windowEvents++;
+        }
+        eventReceived();
+    }
+
+    void left(ChatSession session) {
+        synchronized (this) {
+            pending.put(session.getUsername(), Boolean.FALSE);
+            joinedSessions.remove(session);
+            windowEvents++;
+        }
+        eventReceived();
+    }
+
+    /** A user on another cluster node; there is no local session behind it. */
+    void remoteJoined(String name) {
+        synchronized (this) {
+            pending.put(name, Boolean.TRUE);
+            windowEvents++;
+        }
+        eventReceived();
+    }
+
+    void remoteLeft(String name) {
+        synchronized (this) {
+            pending.put(name, Boolean.FALSE);
+            windowEvents++;
+        }
+        eventReceived();
+    }
+
+    private void eventReceived() {
+        eventsReceived.incrementAndGet();
+        if (timer == null) {
+            flush();
+            return;
+        }
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        timer.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        Map<String, Boolean> window;
+        Set<ChatSession> joiners;
+        int events;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            window = new LinkedHashMap<>(pending);
+            joiners = Collections.newSetFromMap(new IdentityHashMap<>());
+            joiners.addAll(joinedSessions);
+            events = windowEvents;
+            pending.clear();
+            joinedSessions.clear();
+            windowEvents = 0;
+        }
+        int published = AppServer.publishPresence(window, joiners);
+        windowsPublished.incrementAndGet();
+        if (events > 1) {
+            eventsCoalesced.addAndGet(events - 1);
+            System.out.println("[presence] " + events + " join/leave events -> 1 update ("
+                    + published + " users changed)");
+        }
+    }
+
+    long eventsReceived() {
+        return eventsReceived.get();
+    }
+
+    long eventsCoalesced() {
+        return eventsCoalesced.get();
+    }
+
+    long windowsPublished() {
+        return windowsPublished.get();
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Per-connection token buckets for inbound traffic, with separate message and
+ * byte budgets for text and images. A message over budget is still handled,
+ * but the connection stops reading until its buckets are back in credit, so
+ * a fast sender is slowed to the configured rate by TCP backpressure alone.
+ * A message that would need a pause longer than {@code -Dchat.rate.maxDelayMs}
+ * is dropped instead. Sustained throttling escalates: first an
+ * {@code ERROR:} warning, then a disconnect.
+ *
+ * <p>Budgets ({@code -Dchat.rate.*}): {@code textPerSecond} (20, bursts of
+ * twice that), {@code textBytesPerSecond} (32 KB), {@code imagesPerSecond}
+ * (1, bursts of 5) and {@code imageBytesPerSecond} (2 MB, bursts of one
+ * maximum-size image). Escalation: {@code warnAfterSeconds} (2) and
+ * {@code disconnectAfterSeconds} (10) of throttling, which is forgiven at
+ * half the rate it builds up. Called from the connection's reader only, so
+ * nothing here is synchronized.
+ */
+final class RateLimiter {
+    static final double TEXT_PER_SECOND = rate("textPerSecond", 20);
+    static final double TEXT_BYTES_PER_SECOND = rate("textBytesPerSecond", 32 * 1024);
+    static final double IMAGES_PER_SECOND = rate("imagesPerSecond", 1);
+    static final double IMAGE_BYTES_PER_SECOND = rate("imageBytesPerSecond", 2 * 1024 * 1024);
+    static final long MAX_DELAY_NANOS = Long.getLong("chat.rate.maxDelayMs", 1000) * 1_000_000;
+    static final double WARN_SECONDS = rate("warnAfterSeconds", 2);
+    static final double DISCONNECT_SECONDS = rate("disconnectAfterSeconds", 10);
+
+    static final int CARRY_ON = 0;
+    static final int WARN = 1;
+    static final int DISCONNECT = 2;
+
+    private static double rate(String name, double defaultValue) {
+        return Double.parseDouble(System.getProperty("chat.rate." + name, String.valueOf(defaultValue)));
+    }
+
+    private final TokenBucket textMessages = new TokenBucket(TEXT_PER_SECOND, TEXT_PER_SECOND * 2);
+    private final TokenBucket textBytes = new TokenBucket(TEXT_BYTES_PER_SECOND, TEXT_BYTES_PER_SECOND);
+    private final TokenBucket imageMessages = new TokenBucket(IMAGES_PER_SECOND, IMAGES_PER_SECOND * 5);
+    private final TokenBucket imageBytes = new TokenBucket(IMAGE_BYTES_PER_SECOND,
+            Math.max(IMAGE_BYTES_PER_SECOND, ImageTransfers.MAX_IMAGE_BYTES));
+
+    // Seconds of throttling, leaking away at half real time
+    private double pressure;
+    private long pressureAt = System.nanoTime();
+    private boolean warned;
+    private long lastDropNotice;
+
+    private long throttled;
+    private long throttledNanos;
+    private long dropped;
+
+    /**
+     * Charges one inbound message: {@code whole} messages count against the
+     * message budget, image chunks only against bytes. Returns how long the
+     * connection should stop reading (0 within budget), or -1 if the message
+     * must be dropped. Chunks of an upload already under way are never dropped.
+     */
+    long admit(boolean image, boolean whole, int bytes, long now) {
+        TokenBucket count = image ? imageMessages : textMessages;
+        TokenBucket volume = image ? imageBytes : textBytes;
+        long wait = Math.max(whole ? count.waitFor(1, now) : 0, volume.waitFor(bytes, now));
+        if (wait > MAX_DELAY_NANOS && whole) {
+            dropped++;
+            return -1;
+        }
+        if (whole) {
+            count.take(1);
+        }
+        volume.take(bytes);
+        if (wait > 0) {
+            throttled++;
+            throttledNanos += wait;
+        }
+        return wait;
+    }
+
+    /** Adds a pause (or a drop, as {@link #MAX_DELAY_NANOS}) to the flood score. */
+    int escalate(long penaltyNanos, long now) {
+        pressure = Math.max(0, pressure - (now - pressureAt) / 2e9) + penaltyNanos / 1e9;
+        pressureAt = now;
+        if (pressure >= DISCONNECT_SECONDS) {
+            return DISCONNECT;
+        }
+        if (pressure < WARN_SECONDS / 2) {
+            warned = false;
+        } else if (pressure >= WARN_SECONDS && !warned) {
+            warned = true;
+            return WARN;
+        }
+        return CARRY_ON;
+    }
+
+    /** At most one "message dropped" notice a second. */
+    boolean dropNoticeDue(long now) {
+        if (now - lastDropNotice < 1_000_000_000L) {
+            return false;
+        }
+        lastDropNotice = now;
+        return true;
+    }
+
+    long throttled() {
+        return throttled;
+    }
+
+    long throttledMillis() {
+        return throttledNanos / 1_000_000;
+    }
+
+    long dropped() {
+        return dropped;
+    }
+
+    /** Tokens refill continuously up to {@code burst}; taking may run into debt. */
+    private static final class TokenBucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double perSecond, double burst) {
+            this.perNano = perSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        /** Nanoseconds until {@code n} tokens would be covered; 0 if they are now. */
+        long waitFor(double n, long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * perNano);
+            refilledAt = now;
+            double deficit = n - tokens;
+            return deficit <= 0 ? 0 : (long) (deficit / perNano);
+        }
+
+        void take(double n) {
+            tokens -= n;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Named chat rooms next to the implicit "All" group. Each room keeps its own
+ * concurrent member set, so a room message is routed to its members only
+ * instead of walking every connection. Rooms are created by the first
+ * {@code /join} and disappear when the last member leaves.
+ *
+ * <p>Protocol: {@code /join <room>}, {@code /leave <room>} and {@code /rooms}
+ * commands, answered with {@code ROOM_JOINED:<room>}, {@code ROOM_LEFT:<room>}
+ * and {@code ROOMS:<room>=<members>,...}; messages go up as
+ * {@code ROOM_MSG:<room>:<text>} and down as {@code ROOM:<room>:<sender>:<text>}.
+ */
+final class Rooms {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final Map<String, Set<ChatSession>> rooms = new ConcurrentHashMap<>();
+
+    static boolean isValidName(String room) {
+        return NAME.matcher(room).matches() && !room.equals("All");
+    }
+
+    /** Returns false if the name is not a valid room name. */
+    boolean join(String room, ChatSession session) {
+        if (!isValidName(room)) {
+            return false;
+        }
+        // compute() so a concurrent last leave can't drop the set we are joining
+        rooms.compute(room, (name, members) -> {
+            Set<ChatSession> set = members != null ? members : ConcurrentHashMap.newKeySet();
+            set.add(session);
+            return set;
+        });
+        return true;
+    }
+
+    /** Returns false if the session was not in the room. */
+    boolean leave(String room, ChatSession session) {
+        boolean[] left = {false};
+        rooms.computeIfPresent(room, (name, members) -> {
+            left[0] = members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+        return left[0];
+    }
+
+    boolean isMember(String room, ChatSession session) {
+        Set<ChatSession> members = rooms.get(room);
+        return members != null && members.contains(session);
+    }
+
+    /** Sends a line to every member except the sender; costs O(room members). */
+    void publish(String room, ChatSession sender, EncodedMessage message) {
+        Set<ChatSession> members = rooms.get(room);
+        if (members == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        int sent = 0;
+        for (ChatSession member : members) {
+            if (member != sender && member.isActive()) {
+                member.send(message);
+                sent++;
+            }
+        }
+        Metrics.FANOUT.since(start);
+        Metrics.RECIPIENTS.record(sent);
+    }
+
+    /** {@code room=members,...}, sorted by name. */
+    String describe() {
+        StringBuilder list = new StringBuilder();
+        for (Map.Entry<String, Set<ChatSession>> room : new TreeMap<>(rooms).entrySet()) {
+            list.append(list.length() == 0 ? "" : ",").append(room.getKey()).append('=')
+                    .append(room.getValue().size());
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Every connection on this node, indexed two ways: by a compact integer id
+ * handed out when the connection is registered (ids of closed connections
+ * are reused, so they stay below the peak connection count) and, once
+ * logged in, by username. Registering, claiming a name and leaving are
+ * O(1), and iterating walks the id table in place without copying it, so
+ * neither logins nor broadcasts get slower as more users connect. Ids are
+ * the registry's own; routing by name goes through the name map.
+ *
+ * <p>Writers synchronize on the registry; readers take no lock. Slots are
+ * an {@link AtomicReferenceArray}, so a registered or cleared slot is
+ * visible to readers as soon as it is set, and {@code high} is written
+ * after a new slot, so a reader that sees the new bound sees its
+ * connection too. An iteration sees the connections registered when it
+ * started, and any of them may have closed since, so callers still check
+ * {@link ChatSession#isActive()}.
+ */
+final class SessionRegistry implements Iterable<ChatSession> {
+    private final Map<String, ChatSession> names = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<ChatSession> slots = new AtomicReferenceArray<>(64);
+    private volatile int high; // One past the highest id handed out; written after the slot
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    /** Gives a new connection its id and makes it visible to iteration. */
+    synchronized void add(ChatSession session) {
+        int id;
+        int end = high;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = end++;
+            if (id == slots.length()) {
+                slots = grow(slots);
+            }
+        }
+        session.setId(id);
+        slots.set(id, session);
+        high = end;
+    }
+
+    /** Removes a connection; returns true if it held a username, which is released too. */
+    boolean remove(ChatSession session) {
+        synchronized (this) {
+            int id = session.getId();
+            if (id >= 0 && slots.get(id) == session) {
+                slots.set(id, null);
+                if (freeCount == freeIds.length) {
+                    freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+                }
+                freeIds[freeCount++] = id;
+            }
+        }
+        // Only our own entry: a rejected duplicate login carries the same name
+        String name = session.getUsername();
+        return name != null && names.remove(name, session);
+    }
+
+    /** Atomically takes {@code name} for {@code session}; false if someone here has it. */
+    boolean claim(String name, ChatSession session) {
+        return names.putIfAbsent(name, session) == null;
+    }
+
+    ChatSession get(String name) {
+        return names.get(name);
+    }
+
+    boolean contains(String name) {
+        return names.containsKey(name);
+    }
+
+    /** Live view of the logged-in names; not a copy. */
+    Set<String> names() {
+        return names.keySet();
+    }
+
+    // Called with the lock held, so no slot changes while it is copied
+    private static AtomicReferenceArray<ChatSession> grow(AtomicReferenceArray<ChatSession> table) {
+        AtomicReferenceArray<ChatSession> grown = new AtomicReferenceArray<>(table.length() * 2);
+        for (int i = 0; i < table.length(); i++) {
+            grown.set(i, table.get(i));
+        }
+        return grown;
+    }
+
+    /** Walks the id table as it is now, skipping free ids. */
+    @Override
+    public Iterator<ChatSession> iterator() {
+        int end = high;
+        return new Cursor(slots, end);
+    }
+
+    private static final class Cursor implements Iterator<ChatSession> {
+        private final AtomicReferenceArray<ChatSession> table;
+        private final int end;
+        private int index;
+        private ChatSession next;
+
+        Cursor(AtomicReferenceArray<ChatSession> table, int high) {
+            this.table = table;
+            this.end = Math.min(high, table.length());
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && index < end) {
+                next = table.get(index++);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ChatSession next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            ChatSession current = next;
+            advance();
+            return current;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Small previews of stored images, made once per image so recipients don't
+ * each decode the full upload. Clients that advertise {@link #CAP_THUMBS}
+ * next to {@link MediaStore#CAP_MEDIA} get {@code THUMB:<hash>:<base64>}
+ * (or an image frame flagged {@link FrameCodec#FLAG_THUMB}) after the
+ * {@code IMAGE_REF}, ask for one with {@code THUMB_GET:<hash>} when paging
+ * through history, and fetch the full image with {@code MEDIA_GET} only
+ * when it is opened.
+ *
+ * <p>Previews are {@code -Dchat.thumbs.width} (220) pixels wide, and at most
+ * twice that tall, and made on
+ * {@code -Dchat.thumbs.threads} (2) workers behind a queue of
+ * {@code -Dchat.thumbs.queue} (64) images, so routing never waits for one;
+ * recipients of an image still in the queue get its preview when it is done.
+ * If the queue is full they get none and open the image to see it. The
+ * newest {@code -Dchat.thumbs.cacheBytes} (8 MB) of previews stay in memory.
+ * Images of more than {@code -Dchat.thumbs.maxPixels} (40 million) pixels
+ * get no preview, however small the upload, since decoding one could take
+ * most of the heap.
+ */
+final class Thumbnails {
+    static final String CAP_THUMBS = "thumbs";
+    static final int WIDTH = Math.max(16, Integer.getInteger("chat.thumbs.width", 220));
+    static final int HEIGHT = WIDTH * 2;
+    static final long MAX_PIXELS = Long.getLong("chat.thumbs.maxPixels", 40_000_000L);
+
+    // Cached for images that could not be decoded, so they are not tried again
+    private static final EncodedMessage NONE = EncodedMessage.of("");
+
+    private final long cacheBytes = Long.getLong("chat.thumbs.cacheBytes", 8L * 1024 * 1024);
+    private final ThreadPoolExecutor workers;
+
+    // Guarded by this. Access-ordered, sized by encoded length.
+    private final LinkedHashMap<String, EncodedMessage> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    // Images queued or being made, with everyone waiting for their preview
+    private final Map<String, List<ChatSession>> waiting = new HashMap<>();
+
+    private final AtomicLong made = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    Thumbnails() {
+        int threads = Math.max(1, Integer.getInteger("chat.thumbs.threads", 2));
+        AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Integer.getInteger("chat.thumbs.queue", 64))), r -> {
+                    Thread t = new Thread(r, "thumbnailer-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                });
+    }
+
+    void send(ChatSession recipient, String hash, ImageData image) {
+        List<ChatSession> one = new ArrayList<>(1);
+        one.add(recipient);
+        send(one, hash, image);
+    }
+
+    /** Sends the preview of {@code image} to each recipient: now if it is cached, else once it is made. */
+    void send(Collection<ChatSession> recipients, String hash, ImageData image) {
+        EncodedMessage thumb;
+        synchronized (this) {
+            thumb = cache.get(hash);
+            if (thumb == null) {
+                List<ChatSession> queued = waiting.get(hash);
+                if (queued != null) {
+                    queued.addAll(recipients);
+                    return;
+                }
+                waiting.put(hash, new ArrayList<>(recipients));
+                try {
+                    workers.execute(() -> make(hash, image));
+                } catch (RejectedExecutionException e) {
+                    waiting.remove(hash);
+                    rejected.incrementAndGet();
+                }
+                return;
+            }
+        }
+        cacheHits.incrementAndGet();
+        deliver(thumb, recipients);
+    }
+
+    long made() {
+        return made.get();
+    }
+
+    long cacheHits() {
+        return cacheHits.get();
+    }
+
+    long rejected() {
+        return rejected.get();
+    }
+
+    private void make(String hash, ImageData image) {
+        long start = System.nanoTime();
+        EncodedMessage thumb = NONE;
+        try {
+            byte[] preview = render(image.bytes(), WIDTH, HEIGHT);
+            if (preview != null) {
+                thumb = EncodedMessage.image("THUMB:" + hash + ":", FrameCodec.FLAG_THUMB, hash,
+                        ImageData.ofBytes(preview));
+                made.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[media] no thumbnail for " + hash + ": " + e);
+        } finally {
+            // Even after an Error, so later recipients of this image aren't queued behind it forever
+            Metrics.THUMBNAIL.since(start);
+            List<ChatSession> recipients;
+            synchronized (this) {
+                cache(hash, thumb);
+                recipients = waiting.remove(hash);
+            }
+            if (recipients != null) {
+                deliver(thumb, recipients);
+            }
+        }
+    }
+
+    private static void deliver(EncodedMessage thumb, Collection<ChatSession> recipients) {
+        if (thumb == NONE) {
+            return;
+        }
+        for (ChatSession recipient : recipients) {
+            if (recipient.isActive()) {
+                recipient.send(thumb);
+            }
+        }
+    }
+
+    private void cache(String hash, EncodedMessage thumb) {
+        cache.put(hash, thumb);
+        cachedBytes += thumb.length();
+        Iterator<EncodedMessage> eldest = cache.values().iterator();
+        while (cachedBytes > cacheBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().length();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * A JPEG (PNG if it has transparency) that fits in {@code width} by
+     * {@code height}, or null if the bytes are not an image or it has more
+     * than {@link #MAX_PIXELS}. Large images are subsampled while decoding,
+     * so their full raster is never held, then halved with bilinear
+     * filtering down to the final size.
+     */
+    static byte[] render(byte[] bytes, int width, int height) throws IOException {
+        BufferedImage source;
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                if ((long) sourceWidth * sourceHeight > MAX_PIXELS) {
+                    return null;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                // Keep at least twice the target size for the filtering passes below
+                int step = Math.max(1, Math.max(sourceWidth / (width * 2), sourceHeight / (height * 2)));
+                param.setSourceSubsampling(step, step, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        boolean alpha = source.getColorModel().hasAlpha();
+        double scale = Math.min(1, Math.min(width / (double) source.getWidth(), height / (double) source.getHeight()));
+        int targetWidth = Math.max(1, (int) (source.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) (source.getHeight() * scale));
+        BufferedImage current = source;
+        do {
+            int w = Math.max(targetWidth, current.getWidth() / 2);
+            int h = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (current.getWidth() > targetWidth || current.getHeight() > targetHeight);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(current, alpha ? "png" : "jpg", out);
+        return out.toByteArray();
+    }
+}
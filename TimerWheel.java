@@ -0,0 +1,160 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel (Varghese and Lauck): one thread, one array of
+ * buckets, and deadlines hashed into the bucket for their tick. Scheduling
+ * and cancelling are O(1), timeouts are reused, and each tick only looks at
+ * one bucket, so hundreds of thousands of deadlines cost a few words each
+ * instead of a scheduled task or a thread apiece.
+ * Deadlines fire up to one tick late; those further away than one turn of
+ * the wheel wait out their remaining rounds in their bucket.
+ *
+ * <p>Any thread may schedule or cancel; {@link Timeout#expire} runs on the
+ * wheel's thread and must not block. A cancelled timeout is unlinked when
+ * its bucket next comes round.
+ */
+final class TimerWheel {
+    private static final int IDLE = 0;
+    private static final int PENDING = 1;
+    private static final int EXPIRED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    /** A reusable deadline; scheduling it again is allowed once it has expired. */
+    abstract static class Timeout {
+        private volatile int state;
+        private long deadline;
+        private long rounds; // wheel thread only
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+
+        /** Called on the wheel thread once the deadline has passed. */
+        abstract void expire(long now);
+
+        /** Stops this timeout for good; returns false if it had already fired. */
+        final boolean cancel() {
+            while (true) {
+                int current = state;
+                if (current == CANCELLED) {
+                    return false;
+                }
+                if (STATE.compareAndSet(this, current, CANCELLED)) {
+                    return current != EXPIRED;
+                }
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startedAt = System.nanoTime();
+    private long tick; // wheel thread only
+    private volatile int size;
+
+    /** Starts the wheel's daemon thread; {@code wheelSize} is rounded up to a power of two. */
+    TimerWheel(String name, long tickNanos, int wheelSize) {
+        this.tickNanos = tickNanos;
+        this.buckets = new Timeout[Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1];
+        this.mask = buckets.length - 1;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Arms {@code timeout} to expire {@code delayNanos} from now. Ignored if
+     * it was cancelled; it must not already be pending.
+     */
+    void schedule(Timeout timeout, long delayNanos) {
+        long deadline = System.nanoTime() + Math.max(0, delayNanos);
+        if (STATE.compareAndSet(timeout, IDLE, PENDING) || STATE.compareAndSet(timeout, EXPIRED, PENDING)) {
+            timeout.deadline = deadline;
+            added.add(timeout);
+        } else if (timeout.state == PENDING) {
+            throw new IllegalStateException("Timeout already scheduled");
+        }
+    }
+
+    /** Timeouts on the wheel, including cancelled ones not yet unlinked. */
+    int size() {
+        return size;
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = startedAt + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) - tickEnd < 0) {
+                LockSupport.parkNanos(tickEnd - now);
+            }
+            transferAdded();
+            expireBucket((int) (tick & mask), now);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != PENDING) {
+                continue;
+            }
+            // Overdue deadlines go in the current bucket, which is expired next
+            long due = Math.max((timeout.deadline - startedAt) / tickNanos, tick);
+            timeout.rounds = (due - tick) / buckets.length;
+            timeout.bucket = (int) (due & mask);
+            timeout.prev = null;
+            timeout.next = buckets[timeout.bucket];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            buckets[timeout.bucket] = timeout;
+            size++;
+        }
+    }
+
+    private void expireBucket(int bucket, long now) {
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state != PENDING) {
+                unlink(timeout);
+            } else if (timeout.rounds <= 0) {
+                unlink(timeout);
+                if (STATE.compareAndSet(timeout, PENDING, EXPIRED)) {
+                    try {
+                        timeout.expire(now);
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed: " + e);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Microbenchmarks for the server's routing paths and the protocol decoding
+ * the client runs on every inbound message. They drive the real classes
+ * through in-memory transports, so no sockets or threads are involved.
+ *
+ * <pre>
+ *   javac -d out *.java &amp;&amp; javac -cp out -d out bench/ChatBench.java
+ *   java -cp out ChatBench            # run, compare with bench/baseline.txt
+ *   java -cp out ChatBench --save     # run, then make this the new baseline
+ *   java -cp out ChatBench broadcast  # only benchmarks whose name contains "broadcast"
+ * </pre>
+ *
+ * Each benchmark warms up for {@code -Dbench.warmupMs} (default 1000), then
+ * runs {@code -Dbench.iterations} (default 5) timed iterations of
+ * {@code -Dbench.iterationMs} (default 1000) and reports the mean time per
+ * operation, plus the bytes it allocates (measured separately, not part of
+ * the baseline). Compare runs on the same machine only.
+ */
+public class ChatBench {
+    private static final Path BASELINE = Paths.get("bench", "baseline.txt");
+    private static final long WARMUP_MS = Long.getLong("bench.warmupMs", 1000);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MS = Long.getLong("bench.iterationMs", 1000);
+
+    /** Consumed results, so the JIT can't drop the work that produced them. */
+    static volatile long sink;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Transport that only counts what it is sent. */
+    static final class CountingTransport implements ChatSession.Transport {
+        final OutboundQueue outbound = new OutboundQueue();
+        long sent;
+
+        @Override
+        public void send(EncodedMessage message) {
+            sent += message.length();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public OutboundQueue outbound() {
+            return outbound;
+        }
+
+        @Override
+        public void pauseReading(long nanos) {
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path historyDir = Files.createTempDirectory("chatbench-history");
+        Path mediaDir = Files.createTempDirectory("chatbench-media");
+        // Before AppServer is first touched: its stores read these once
+        System.setProperty("chat.log.dir", historyDir.toString());
+        System.setProperty("chat.log.segmentBytes", String.valueOf(4 * 1024 * 1024));
+        System.setProperty("chat.log.retainSegments", "2");
+        System.setProperty("chat.media.dir", mediaDir.toString());
+        System.setProperty("chat.presence.windowMs", "0");
+        // Dispatch benchmarks send far faster than any client may
+        System.setProperty("chat.rate.textPerSecond", "1e12");
+        System.setProperty("chat.rate.textBytesPerSecond", "1e12");
+
+        boolean save = false;
+        String filter = "";
+        for (String arg : args) {
+            if (arg.equals("--save")) {
+                save = true;
+            } else {
+                filter = arg;
+            }
+        }
+
+        Map<String, Double> baseline = readBaseline();
+        Map<String, Double> results = new LinkedHashMap<>();
+        System.out.printf("%-28s %12s %10s %12s %10s%n", "benchmark", "ns/op", "+/-", "vs baseline", "B/op");
+
+        // ─── Server: dispatch one line ───────────────────────────────────────
+        List<ChatSession> two = login(2);
+        ChatSession alice = two.get(0);
+        run(results, baseline, filter, "dispatch.private", () -> alice.onLine("MSG_PRIVATE:u1:are we still on for lunch?"));
+        run(results, baseline, filter, "dispatch.group", () -> alice.onLine("has anyone seen the release notes?"));
+        run(results, baseline, filter, "dispatch.unknownCommand", () -> alice.onLine("/nope"));
+        // Ids cycle through four times the ack window, so each is new again when it comes round
+        String[] acked = new String[MessageAcks.WINDOW * 4];
+        for (int i = 0; i < acked.length; i++) {
+            acked[i] = "MSG_ID:" + (1_000_000 + i) + ":MSG_PRIVATE:u1:are we still on for lunch?";
+        }
+        int[] next = new int[1];
+        run(results, baseline, filter, "dispatch.acked", () -> {
+            alice.onLine(acked[next[0]]);
+            next[0] = (next[0] + 1) % acked.length;
+        });
+        logout(two);
+
+        // ─── Server: keyword routing alone (should allocate nothing) ─────────
+        LineDispatcher.Fields fields = new LineDispatcher.Fields();
+        LineDispatcher<long[]> table = new LineDispatcher<>(':');
+        for (String keyword : new String[] {"MSG_PRIVATE", "ROOM_MSG", "HISTORY", "IMG_REF", "MEDIA_GET",
+                "IMG_BEGIN", "IMG_CHUNK", "IMG_END", "IMG_PRIVATE", "IMAGE"}) {
+            table.on(keyword, 2, (total, f) -> total[0] += f.length(f.count() - 1));
+        }
+        long[] total = new long[1];
+        run(results, baseline, filter, "route.private",
+                () -> table.dispatch(total, "MSG_PRIVATE:u1:are we still on for lunch?", fields));
+        run(results, baseline, filter, "route.group",
+                () -> table.dispatch(total, "has anyone seen the release notes?", fields));
+        sink += total[0];
+
+        // ─── Server: group fan-out and roster ────────────────────────────────
+        for (int users : new int[] {10, 100, 1000}) {
+            List<ChatSession> sessions = login(users);
+            ChatSession sender = sessions.get(0);
+            run(results, baseline, filter, "broadcast." + users,
+                    () -> AppServer.broadcastMessage("u0: has anyone seen the release notes?", sender));
+            run(results, baseline, filter, "userList." + users, AppServer::broadcastUserList);
+            ChatSession visitor = new ChatSession(new CountingTransport());
+            run(results, baseline, filter, "connect." + users, () -> {
+                AppServer.addSession(visitor);
+                AppServer.removeClient(visitor);
+            });
+            logout(sessions);
+        }
+
+        // ─── Client: decoding what the server sends ──────────────────────────
+        byte[] lines = repeat("PRIVATE:alice:are we still on for lunch?\n".getBytes(StandardCharsets.UTF_8), 4096);
+        run(results, baseline, filter, "client.readLine", new Decoder(lines) {
+            @Override
+            long decode(InputStream in) throws IOException {
+                return FrameCodec.readLine(in, StandardCharsets.UTF_8).length();
+            }
+        });
+        byte[] frames = repeat(FrameCodec.lineFrame("PRIVATE:alice:are we still on for lunch?"), 4096);
+        run(results, baseline, filter, "client.readFrame", new Decoder(frames) {
+            @Override
+            long decode(InputStream in) throws IOException {
+                return FrameCodec.readFrame(in).payload.length;
+            }
+        });
+
+        if (save) {
+            writeBaseline(results);
+            System.out.println("Saved " + results.size() + " results to " + BASELINE);
+        }
+        delete(historyDir);
+        delete(mediaDir);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(paths::add);
+        }
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            Files.deleteIfExists(paths.get(i));
+        }
+    }
+
+    /** Logs in {@code count} sessions named u0, u1, ... on counting transports. */
+    private static List<ChatSession> login(int count) {
+        List<ChatSession> sessions = new ArrayList<>();
+        PrintStream out = quiet();
+        for (int i = 0; i < count; i++) {
+            ChatSession session = new ChatSession(new CountingTransport());
+            AppServer.addSession(session);
+            session.onLine("USERNAME:u" + i);
+            sessions.add(session);
+        }
+        System.setOut(out);
+        return sessions;
+    }
+
+    private static void logout(List<ChatSession> sessions) {
+        PrintStream out = quiet();
+        for (ChatSession session : sessions) {
+            AppServer.removeClient(session);
+        }
+        System.setOut(out);
+    }
+
+    /** Silences the server's join/leave logging; returns the stream to restore. */
+    private static PrintStream quiet() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        return out;
+    }
+
+    private static void run(Map<String, Double> results, Map<String, Double> baseline, String filter,
+            String name, Runnable op) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        measure(op, WARMUP_MS);
+        double[] perOp = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            perOp[i] = measure(op, ITERATION_MS);
+        }
+        double mean = 0;
+        for (double value : perOp) {
+            mean += value / ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : perOp) {
+            variance += (value - mean) * (value - mean) / ITERATIONS;
+        }
+        results.put(name, mean);
+
+        Double before = baseline.get(name);
+        String delta = before == null ? "-" : String.format("%+.1f%%", (mean - before) / before * 100);
+        System.out.printf("%-28s %12.1f %10.1f %12s %10.0f%n", name, mean, Math.sqrt(variance), delta,
+                allocatedPerOp(op));
+    }
+
+    /** Heap bytes allocated per call by this thread, over a fixed run after warmup. */
+    private static double allocatedPerOp(Runnable op) {
+        int ops = 100_000;
+        long before = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < ops; i++) {
+            op.run();
+        }
+        return (THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / (double) ops;
+    }
+
+    /** Runs {@code op} for about {@code millis} and returns the mean ns per call. */
+    private static double measure(Runnable op, long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long start = System.nanoTime();
+        long ops = 0;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++) {
+                op.run();
+            }
+            ops += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (now - start) / (double) ops;
+    }
+
+    /** Decodes one message per call from a long buffer, rewinding when it runs out. */
+    private abstract static class Decoder implements Runnable {
+        private final ByteArrayInputStream in;
+
+        Decoder(byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        abstract long decode(InputStream in) throws IOException;
+
+        @Override
+        public void run() {
+            if (in.available() == 0) {
+                in.reset();
+            }
+            try {
+                sink += decode(in);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static byte[] repeat(byte[] unit, int times) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(unit.length * times);
+        for (int i = 0; i < times; i++) {
+            out.write(unit, 0, unit.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, Double> readBaseline() throws IOException {
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        if (!Files.exists(BASELINE)) {
+            return baseline;
+        }
+        for (String line : Files.readAllLines(BASELINE, StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 2 && !line.startsWith("#")) {
+                baseline.put(parts[0], Double.parseDouble(parts[1]));
+            }
+        }
+        return baseline;
+    }
+
+    private static void writeBaseline(Map<String, Double> results) throws IOException {
+        Map<String, Double> merged = readBaseline();
+        merged.putAll(results);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(BASELINE, StandardCharsets.UTF_8))) {
+            out.println("# ns/op from ChatBench; only comparable on the machine that wrote it");
+            out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " CPU(s)");
+            for (Map.Entry<String, Double> result : merged.entrySet()) {
+                out.printf("%s %.1f%n", result.getKey(), result.getValue());
+            }
+        }
+    }
+}
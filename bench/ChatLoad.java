@@ -0,0 +1,540 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Headless load generator: ramps up simulated users against a running server
+ * using the plain text protocol ({@code USERNAME:}, group lines,
+ * {@code MSG_PRIVATE:}, {@code IMG_PRIVATE:}) and reports end-to-end latency
+ * percentiles, throughput and errors. Every message carries the time it was
+ * sent, so latency is measured from the sender's write to each recipient's read.
+ *
+ * <pre>
+ *   javac -d out *.java &amp;&amp; javac -cp out -d out bench/ChatLoad.java
+ *   java -Dload.users=2000 -Dload.rampSeconds=20 -cp out ChatLoad
+ * </pre>
+ *
+ * Settings: {@code load.host}, {@code load.port} (default {@code chat.port},
+ * then 9999), {@code load.users} (200), {@code load.rampSeconds} (10),
+ * {@code load.seconds} of steady load after the ramp (30), {@code load.rate}
+ * messages per user per second (0.5), {@code load.mix} as weights
+ * ({@code group=5,private=90,image=5}), {@code load.textBytes} (40),
+ * {@code load.imageBytes} (20000), {@code load.prefix} for user names
+ * ({@code load}) and {@code load.compress} to negotiate {@link Compression}
+ * (false). Each simulated user has its own reader thread.
+ *
+ * <p>With {@code load.scale} set to a list of connection counts
+ * ({@code 100,1000,10000}) it measures connection scaling instead: idle
+ * users log in step by step, and after each step the server's live threads
+ * and live heap are read from {@code /stats gc}, so the server must list
+ * {@code <prefix>admin} in {@code -Dchat.admins}. These users are all read
+ * by one selector thread, so the generator stays small at any count.
+ */
+public class ChatLoad {
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", Integer.getInteger("chat.port", 9999));
+    private static final int USERS = Integer.getInteger("load.users", 200);
+    private static final int RAMP_SECONDS = Integer.getInteger("load.rampSeconds", 10);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "0.5"));
+    private static final int TEXT_BYTES = Integer.getInteger("load.textBytes", 40);
+    private static final int IMAGE_BYTES = Math.max(16, Integer.getInteger("load.imageBytes", 20000));
+    private static final String PREFIX = System.getProperty("load.prefix", "load");
+    private static final boolean COMPRESS = Boolean.getBoolean("load.compress");
+    private static final String SCALE = System.getProperty("load.scale", "");
+    private static final int SETTLE_SECONDS = Integer.getInteger("load.settleSeconds", 5);
+
+    private static final int GROUP = 0;
+    private static final int PRIVATE = 1;
+    private static final int IMAGE = 2;
+    private static final String[] KINDS = {"group", "private", "image"};
+    private static final int[] MIX = parseMix(System.getProperty("load.mix", "group=5,private=90,image=5"));
+
+    private static final Metrics.Histogram[] latency = {
+            new Metrics.Histogram("group", true), new Metrics.Histogram("private", true),
+            new Metrics.Histogram("image", true)};
+    private static final LongAdder[] sent = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private static final LongAdder[] delivered = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private static final LongAdder serverErrors = new LongAdder();
+    private static final LongAdder connectFailures = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    private static final AtomicInteger loggedIn = new AtomicInteger();
+
+    private static final SimUser[] users = new SimUser[USERS];
+    private static final String padding = repeat('x', TEXT_BYTES);
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (!SCALE.isEmpty()) {
+            scale();
+            return;
+        }
+        System.out.printf("Load: %d users on %s:%d, ramp %ds, steady %ds, %.2f msg/user/s, mix group=%d private=%d image=%d%n",
+                USERS, HOST, PORT, RAMP_SECONDS, SECONDS, RATE, MIX[GROUP], MIX[PRIVATE], MIX[IMAGE]);
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "load-sender");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        long started = System.nanoTime();
+        long rampNanos = TimeUnit.SECONDS.toNanos(RAMP_SECONDS);
+        long nextReport = started + TimeUnit.SECONDS.toNanos(5);
+        for (int i = 0; i < USERS; i++) {
+            // Spread connections evenly over the ramp
+            long due = started + rampNanos * i / USERS;
+            while (System.nanoTime() < due) {
+                Thread.sleep(1);
+            }
+            users[i] = new SimUser(i, senders);
+            users[i].start();
+            if (System.nanoTime() >= nextReport) {
+                report(started);
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(nextReport - System.nanoTime()),
+                    TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            if (System.nanoTime() >= nextReport) {
+                report(started);
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+
+        // Stop sending, give in-flight messages a moment, then disconnect everyone
+        running = false;
+        senders.shutdownNow();
+        Thread.sleep(2000);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        for (SimUser user : users) {
+            if (user != null) {
+                user.close();
+            }
+        }
+        summary(seconds);
+    }
+
+    /** One simulated client: a socket, a reader thread and its own send schedule. */
+    private static final class SimUser extends Thread {
+        final int index;
+        final String name;
+        final ScheduledExecutorService senders;
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        volatile boolean ready;
+
+        SimUser(int index, ScheduledExecutorService senders) {
+            super("load-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.name = PREFIX + index;
+            this.senders = senders;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(HOST, PORT), 10_000);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                if (COMPRESS) {
+                    send("HELLO:" + Compression.CAP_DEFLATE);
+                    String reply = FrameCodec.readLine(in, StandardCharsets.UTF_8);
+                    if (reply != null && reply.contains(Compression.CAP_DEFLATE)) {
+                        in = new BufferedInputStream(new InflaterInputStream(in, Compression.newInflater()), 64 * 1024);
+                        out = new DeflaterOutputStream(socket.getOutputStream(), Compression.newDeflater(), 8192, true);
+                    }
+                }
+                send("USERNAME:" + name);
+            } catch (IOException e) {
+                connectFailures.increment();
+                return;
+            }
+            try {
+                String line;
+                while ((line = FrameCodec.readLine(in, StandardCharsets.UTF_8)) != null) {
+                    onLine(line);
+                }
+            } catch (IOException e) {
+                // counted below
+            }
+            if (running) {
+                disconnects.increment();
+            }
+            if (ready) {
+                loggedIn.decrementAndGet();
+                ready = false;
+            }
+        }
+
+        private void onLine(String line) {
+            long now = System.nanoTime();
+            if (line.startsWith("PRIVATE:")) {
+                received(PRIVATE, now, textStamp(line.substring(line.indexOf(':', 8) + 1)));
+            } else if (line.startsWith("IMAGE_PRIVATE:")) {
+                received(IMAGE, now, imageStamp(line.substring(line.indexOf(':', 14) + 1)));
+            } else if (line.startsWith("ERROR:")) {
+                serverErrors.increment();
+                if (serverErrors.sum() <= 5) {
+                    System.out.println("  " + name + " got " + line);
+                }
+            } else if (line.startsWith("SYSTEM:Welcome")) {
+                ready = true;
+                loggedIn.incrementAndGet();
+                scheduleNext();
+            } else {
+                int colon = line.indexOf(": ");
+                if (colon > 0 && !line.startsWith("SYSTEM:") && !line.startsWith("USERS_LIST:")) {
+                    received(GROUP, now, textStamp(line.substring(colon + 2)));
+                }
+            }
+        }
+
+        private void scheduleNext() {
+            if (!running || RATE <= 0) {
+                return;
+            }
+            // Poisson arrivals: exponential gaps averaging 1/RATE seconds
+            double gap = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / RATE;
+            senders.schedule(this::sendOne, (long) (gap * 1_000_000), TimeUnit.MICROSECONDS);
+        }
+
+        private void sendOne() {
+            if (!running || !ready) {
+                return;
+            }
+            try {
+                int kind = pickKind();
+                SimUser peer = kind == GROUP ? null : randomPeer();
+                if (peer == null) {
+                    kind = GROUP;
+                }
+                long stamp = System.nanoTime();
+                if (kind == GROUP) {
+                    send("load " + stamp + " " + padding);
+                } else if (kind == PRIVATE) {
+                    send("MSG_PRIVATE:" + peer.name + ":load " + stamp + " " + padding);
+                } else {
+                    send("IMG_PRIVATE:" + peer.name + ":" + image(stamp));
+                }
+                sent[kind].increment();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            scheduleNext();
+        }
+
+        private SimUser randomPeer() {
+            for (int attempt = 0; attempt < 8; attempt++) {
+                SimUser peer = users[ThreadLocalRandom.current().nextInt(USERS)];
+                if (peer != null && peer != this && peer.ready) {
+                    return peer;
+                }
+            }
+            return null;
+        }
+
+        synchronized void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ─── Connection scaling ──────────────────────────────────────────────────
+
+    private static void scale() throws IOException, InterruptedException {
+        List<Integer> steps = new ArrayList<>();
+        for (String step : SCALE.split(",")) {
+            steps.add(Integer.parseInt(step.trim()));
+        }
+        Selector selector = Selector.open();
+        Queue<SocketChannel> joining = new ConcurrentLinkedQueue<>();
+        Thread drain = new Thread(() -> drain(selector, joining), "load-drain");
+        drain.setDaemon(true);
+        drain.start();
+        Admin admin = new Admin(PREFIX + "admin");
+
+        System.out.printf("Scale: steps %s on %s:%d, %ds settle per step%n", steps, HOST, PORT, SETTLE_SECONDS);
+        System.out.printf("%9s %9s %9s %12s %10s%n", "clients", "users", "threads", "heapLive", "KB/client");
+        List<SocketChannel> channels = new ArrayList<>();
+        long firstHeap = -1;
+        int firstClients = 0;
+        for (int step : steps) {
+            while (channels.size() < step) {
+                channels.add(join(PREFIX + channels.size(), selector, joining));
+            }
+            // Wait until the server has logged everyone in, then give it time to settle
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            String[] stats = admin.stats(false);
+            while (number(stats[0], "users=") < step + 1 && System.nanoTime() < deadline) {
+                Thread.sleep(500);
+                stats = admin.stats(false);
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(SETTLE_SECONDS));
+            stats = admin.stats(true);
+            long heap = number(stats[1], "heapUsed=");
+            if (firstHeap < 0) {
+                firstHeap = heap;
+                firstClients = step;
+            }
+            String perClient = step > firstClients
+                    ? String.format("%.1f", (heap - firstHeap) / (double) (step - firstClients)) : "-";
+            System.out.printf("%9d %9d %9d %10dKB %10s%n", step, number(stats[0], "users=") - 1,
+                    number(stats[1], "threads="), heap, perClient);
+        }
+        System.out.printf("errors: server=%d connect=%d disconnects=%d%n",
+                serverErrors.sum(), connectFailures.sum(), disconnects.sum());
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        admin.close();
+    }
+
+    /** Logs one idle user in (with presence deltas, not full rosters) and hands it to the drain thread. */
+    private static SocketChannel join(String name, Selector selector, Queue<SocketChannel> joining) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, PORT));
+        channel.write(ByteBuffer.wrap(("HELLO:presence\n").getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer reply = ByteBuffer.allocate(1);
+        do {
+            reply.clear();
+            if (channel.read(reply) < 0) {
+                connectFailures.increment();
+                break;
+            }
+        } while (reply.get(0) != '\n');
+        channel.write(ByteBuffer.wrap(("USERNAME:" + name + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.configureBlocking(false);
+        joining.add(channel);
+        selector.wakeup();
+        return channel;
+    }
+
+    /** Reads and discards everything sent to the idle users, so none of them looks slow to the server. */
+    private static void drain(Selector selector, Queue<SocketChannel> joining) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                SocketChannel channel;
+                while ((channel = joining.poll()) != null) {
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    int n;
+                    try {
+                        n = ((SocketChannel) key.channel()).read(buffer);
+                    } catch (IOException e) {
+                        n = -1;
+                    }
+                    if (n < 0) {
+                        key.cancel();
+                        disconnects.increment();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.out.println("drain stopped: " + e);
+        }
+    }
+
+    private static long number(String line, String key) {
+        int start = line.indexOf(key);
+        if (start < 0) {
+            return -1;
+        }
+        start += key.length();
+        int end = start;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(line.substring(start, end));
+    }
+
+    /** The admin connection that asks for {@code /stats}; its reader keeps only the stats lines. */
+    private static final class Admin extends Thread {
+        final Socket socket = new Socket();
+        final BlockingQueue<String> stats = new LinkedBlockingQueue<>();
+        final OutputStream out;
+        final InputStream in;
+
+        Admin(String name) throws IOException {
+            super("load-admin");
+            setDaemon(true);
+            socket.connect(new InetSocketAddress(HOST, PORT), 10_000);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out.write(("USERNAME:" + name + "\n").getBytes(StandardCharsets.UTF_8));
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = FrameCodec.readLine(in, StandardCharsets.UTF_8)) != null) {
+                    if (line.startsWith("SYSTEM:[stats] uptime=") || line.startsWith("SYSTEM:[stats] jvm ")) {
+                        stats.add(line);
+                    } else if (line.startsWith("ERROR:")) {
+                        serverErrors.increment();
+                        System.out.println("  admin got " + line);
+                    }
+                }
+            } catch (IOException e) {
+                // reported by stats() timing out
+            }
+        }
+
+        /** The {@code uptime} and {@code jvm} lines of a fresh {@code /stats}, after a collection if {@code gc}. */
+        String[] stats(boolean gc) throws IOException, InterruptedException {
+            stats.clear();
+            out.write((gc ? "/stats gc\n" : "/stats\n").getBytes(StandardCharsets.UTF_8));
+            String[] lines = new String[2];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = stats.poll(30, TimeUnit.SECONDS);
+                if (lines[i] == null) {
+                    throw new IOException("No /stats reply; is " + PREFIX + "admin in -Dchat.admins?");
+                }
+            }
+            return lines;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static void received(int kind, long now, long stamp) {
+        if (stamp > 0) {
+            delivered[kind].increment();
+            latency[kind].record(now - stamp);
+        }
+    }
+
+    // "load <nanos> xxxx"
+    private static long textStamp(String text) {
+        if (!text.startsWith("load ")) {
+            return -1;
+        }
+        int end = text.indexOf(' ', 5);
+        try {
+            return Long.parseLong(end < 0 ? text.substring(5) : text.substring(5, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // First 8 bytes of the image are the send time; 12 base64 chars decode to 9 bytes
+    private static long imageStamp(String base64) {
+        if (base64.length() < 12) {
+            return -1;
+        }
+        return ByteBuffer.wrap(Base64.getDecoder().decode(base64.substring(0, 12))).getLong();
+    }
+
+    private static String image(long stamp) {
+        byte[] bytes = new byte[IMAGE_BYTES];
+        new Random(stamp).nextBytes(bytes);
+        ByteBuffer.wrap(bytes).putLong(stamp);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static int pickKind() {
+        int roll = ThreadLocalRandom.current().nextInt(MIX[GROUP] + MIX[PRIVATE] + MIX[IMAGE]);
+        return roll < MIX[GROUP] ? GROUP : roll < MIX[GROUP] + MIX[PRIVATE] ? PRIVATE : IMAGE;
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] mix = new int[3];
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                if (kv.length == 2 && kv[0].equals(KINDS[kind])) {
+                    mix[kind] = Integer.parseInt(kv[1]);
+                }
+            }
+        }
+        if (mix[GROUP] + mix[PRIVATE] + mix[IMAGE] <= 0) {
+            throw new IllegalArgumentException("load.mix has no positive weights: " + spec);
+        }
+        return mix;
+    }
+
+    private static void report(long started) {
+        long sentTotal = sent[GROUP].sum() + sent[PRIVATE].sum() + sent[IMAGE].sum();
+        long deliveredTotal = delivered[GROUP].sum() + delivered[PRIVATE].sum() + delivered[IMAGE].sum();
+        System.out.printf("[%4.0fs] users=%d/%d sent=%d delivered=%d private p50=%s p99=%s errors=%d%n",
+                (System.nanoTime() - started) / 1e9, loggedIn.get(), USERS, sentTotal, deliveredTotal,
+                millis(latency[PRIVATE].percentile(0.50)), millis(latency[PRIVATE].percentile(0.99)),
+                serverErrors.sum() + connectFailures.sum() + disconnects.sum());
+    }
+
+    private static void summary(double seconds) {
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %10s %9s %9s %9s %9s %9s%n",
+                "kind", "sent", "delivered", "deliv/s", "p50", "p90", "p99", "p999", "max");
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            Metrics.Histogram h = latency[kind];
+            System.out.printf("%-8s %10d %10d %10.1f %9s %9s %9s %9s %9s%n", KINDS[kind], sent[kind].sum(),
+                    delivered[kind].sum(), delivered[kind].sum() / seconds, millis(h.percentile(0.50)),
+                    millis(h.percentile(0.90)), millis(h.percentile(0.99)), millis(h.percentile(0.999)),
+                    millis(h.percentile(1.0)));
+        }
+        System.out.printf("errors: server=%d connect=%d disconnects=%d%n",
+                serverErrors.sum(), connectFailures.sum(), disconnects.sum());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder text = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            text.append(c);
+        }
+        return text.toString();
+    }
+}